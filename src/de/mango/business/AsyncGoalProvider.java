@@ -0,0 +1,475 @@
+/*
+ *  Copyright (C) 2011 Sebastian Dörner
+ *
+ *  This file is part of Mango.
+ *
+ *  Mango is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Mango is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Mango.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package de.mango.business;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Runs requests to a {@link GoalProvider} in the background, so the UI thread
+ * never waits for the database. All writes run one after the other on a
+ * single writer thread, reads run on a small pool of reader threads.
+ *
+ * Every method returns a Future for the result. If a callback is given, it
+ * is called with the result on the UI thread, unless the Future has been
+ * cancelled before. Failures are passed to callbacks implementing
+ * {@link GoalProviderErrorCallback} and logged otherwise, they never crash
+ * the application. Writes are done in the order of submission. Reads may
+ * overtake each other, but they always see the writes submitted before them.
+ *
+ * Call {@link #cancelAll()} in onDestroy() of the Activity the callbacks
+ * belong to, so they are not called on a destroyed Activity.
+ */
+public class AsyncGoalProvider
+{
+	private static final String TAG = "Mango";
+	private static final int READER_THREADS = 2;
+
+	private static final ExecutorService sWriter = Executors
+			.newSingleThreadExecutor(new BackgroundThreadFactory("GoalWriter"));
+	private static final ExecutorService sReaders = Executors.newFixedThreadPool(
+			READER_THREADS, new BackgroundThreadFactory("GoalReader"));
+	private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+	// the write submitted last, reads wait for it
+	private static Future<?> sLastWrite;
+
+	/**
+	 * Task holding a reference to the provider until it has run and passing
+	 * its result to the callback on the UI thread.
+	 */
+	private class Request<T> extends FutureTask<T>
+	{
+		private final GoalProviderCallback<T> mCallback;
+		// request which has to be done before this one, may be null
+		private final Future<?> mAfter;
+		// whether this request changes the database and must not be cancelled
+		private final boolean mWrite;
+		// set on the UI thread by cancelAll()
+		private boolean mCallbackDropped = false;
+
+		Request(Callable<T> callable, GoalProviderCallback<T> callback, Future<?> after,
+				boolean write)
+		{
+			super(callable);
+			mCallback = callback;
+			mAfter = after;
+			mWrite = write;
+		}
+
+		/**
+		 * Makes sure the callback is not called anymore. Reads are cancelled
+		 * as well, writes are still done.
+		 */
+		void dropCallback()
+		{
+			mCallbackDropped = true;
+			if (!mWrite)
+				cancel(false);
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				if (mAfter != null && !isCancelled())
+				{
+					try
+					{
+						mAfter.get();
+					} catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+					} catch (Exception e)
+					{
+						// the failed write is reported by its own request
+					}
+				}
+				super.run();
+			} finally
+			{
+				mProvider.release();
+			}
+		}
+
+		@Override
+		protected void done()
+		{
+			if (isCancelled())
+			{
+				forget();
+				return;
+			}
+			T value = null;
+			Throwable failure = null;
+			try
+			{
+				value = get();
+			} catch (InterruptedException e)
+			{
+				forget();
+				return;
+			} catch (ExecutionException e)
+			{
+				failure = e.getCause();
+			}
+			if (mCallback == null)
+			{
+				forget();
+				if (failure != null)
+					Log.e(TAG, "Request failed", failure);
+				return;
+			}
+			final T result = value;
+			final Throwable error = failure;
+			sMainHandler.post(new Runnable()
+			{
+				@SuppressWarnings("unchecked")
+				public void run()
+				{
+					// until now cancelAll() may still drop the callback
+					forget();
+					if (isCancelled())
+						return;
+					if (error == null)
+					{
+						if (!mCallbackDropped)
+							mCallback.action(result);
+					} else if (!mCallbackDropped
+							&& mCallback instanceof GoalProviderErrorCallback<?>)
+						((GoalProviderErrorCallback<T>) mCallback).error(error);
+					else
+						Log.e(TAG, "Request failed", error);
+				}
+			});
+		}
+
+		private void forget()
+		{
+			synchronized (mPending)
+			{
+				mPending.remove(this);
+			}
+		}
+	}
+
+	private final GoalProvider mProvider;
+	// requests whose callback has not been called yet
+	private final HashSet<Request<?>> mPending = new HashSet<Request<?>>();
+
+	/**
+	 * @param gp
+	 *            The provider to run the requests on. It must have been
+	 *            acquired by the caller, who may release it at any time.
+	 *            Pending requests keep it open until they have run.
+	 */
+	public AsyncGoalProvider(GoalProvider gp)
+	{
+		mProvider = gp;
+	}
+
+	private <T> Future<T> read(Callable<T> callable, GoalProviderCallback<T> callback)
+	{
+		Future<?> lastWrite;
+		synchronized (AsyncGoalProvider.class)
+		{
+			lastWrite = sLastWrite;
+		}
+		if (lastWrite != null && lastWrite.isDone())
+			lastWrite = null;
+		return submit(sReaders, new Request<T>(callable, callback, lastWrite, false));
+	}
+
+	private <T> Future<T> write(Callable<T> callable, GoalProviderCallback<T> callback)
+	{
+		Request<T> request = new Request<T>(callable, callback, null, true);
+		synchronized (AsyncGoalProvider.class)
+		{
+			sLastWrite = request;
+		}
+		return submit(sWriter, request);
+	}
+
+	private <T> Future<T> submit(ExecutorService executor, Request<T> request)
+	{
+		mProvider.retain();
+		synchronized (mPending)
+		{
+			mPending.add(request);
+		}
+		executor.execute(request);
+		return request;
+	}
+
+	/**
+	 * Cancels all pending reads and makes sure no callback of a request
+	 * submitted so far is called anymore. Pending writes are still done. Must
+	 * be called on the UI thread.
+	 */
+	public void cancelAll()
+	{
+		ArrayList<Request<?>> pending;
+		synchronized (mPending)
+		{
+			pending = new ArrayList<Request<?>>(mPending);
+			mPending.clear();
+		}
+		for (Request<?> request : pending)
+			request.dropCallback();
+	}
+
+	/**
+	 * @see GoalProvider#getNumTopLevelGoals()
+	 */
+	public Future<Integer> getNumTopLevelGoals(GoalProviderCallback<Integer> callback)
+	{
+		return read(new Callable<Integer>()
+		{
+			public Integer call()
+			{
+				return mProvider.getNumTopLevelGoals();
+			}
+		}, callback);
+	}
+
+	/**
+	 * @see GoalProvider#getTopLevelGoalSummaries()
+	 */
+	public Future<ArrayList<GoalSummary>> getTopLevelGoalSummaries(
+			GoalProviderCallback<ArrayList<GoalSummary>> callback)
+	{
+		return read(new Callable<ArrayList<GoalSummary>>()
+		{
+			public ArrayList<GoalSummary> call()
+			{
+				return mProvider.getTopLevelGoalSummaries();
+			}
+		}, callback);
+	}
+
+	/**
+	 * @see GoalProvider#getTopLevelGoalSummariesAfter(long, int)
+	 */
+	public Future<ArrayList<GoalSummary>> getTopLevelGoalSummariesAfter(final long afterId,
+			final int limit, GoalProviderCallback<ArrayList<GoalSummary>> callback)
+	{
+		return read(new Callable<ArrayList<GoalSummary>>()
+		{
+			public ArrayList<GoalSummary> call()
+			{
+				return mProvider.getTopLevelGoalSummariesAfter(afterId, limit);
+			}
+		}, callback);
+	}
+
+	/**
+	 * @see GoalProvider#getTopLevelGoalSummariesAt(int, int)
+	 */
+	public Future<ArrayList<GoalSummary>> getTopLevelGoalSummariesAt(final int offset,
+			final int limit, GoalProviderCallback<ArrayList<GoalSummary>> callback)
+	{
+		return read(new Callable<ArrayList<GoalSummary>>()
+		{
+			public ArrayList<GoalSummary> call()
+			{
+				return mProvider.getTopLevelGoalSummariesAt(offset, limit);
+			}
+		}, callback);
+	}
+
+	/**
+	 * @see GoalProvider#getGoalWithId(long)
+	 */
+	public Future<Goal> getGoalWithId(final long id, GoalProviderCallback<Goal> callback)
+	{
+		return read(new Callable<Goal>()
+		{
+			public Goal call()
+			{
+				return mProvider.getGoalWithId(id);
+			}
+		}, callback);
+	}
+
+	/**
+	 * @see GoalProvider#getChildGoalSummaries(long)
+	 */
+	public Future<ArrayList<GoalSummary>> getChildGoalSummaries(final long parentId,
+			GoalProviderCallback<ArrayList<GoalSummary>> callback)
+	{
+		return read(new Callable<ArrayList<GoalSummary>>()
+		{
+			public ArrayList<GoalSummary> call()
+			{
+				return mProvider.getChildGoalSummaries(parentId);
+			}
+		}, callback);
+	}
+
+	/**
+	 * @see GoalProvider#insertGoal(Goal, long)
+	 */
+	public Future<Long> insertGoal(final Goal g, final long parent,
+			GoalProviderCallback<Long> callback)
+	{
+		return write(new Callable<Long>()
+		{
+			public Long call()
+			{
+				return mProvider.insertGoal(g, parent);
+			}
+		}, callback);
+	}
+
+	/**
+	 * @see GoalProvider#updateGoal(long, Goal)
+	 */
+	public Future<Boolean> updateGoal(final long id, final Goal g,
+			GoalProviderCallback<Boolean> callback)
+	{
+		return write(new Callable<Boolean>()
+		{
+			public Boolean call()
+			{
+				return mProvider.updateGoal(id, g);
+			}
+		}, callback);
+	}
+
+	/**
+	 * @see GoalProvider#updateGoalCompletion(long, int)
+	 */
+	public Future<Boolean> updateGoalCompletion(final long goalId, final int newCompletion,
+			GoalProviderCallback<Boolean> callback)
+	{
+		return write(new Callable<Boolean>()
+		{
+			public Boolean call()
+			{
+				return mProvider.updateGoalCompletion(goalId, newCompletion);
+			}
+		}, callback);
+	}
+
+	/**
+	 * @see GoalProvider#updateGoalCompletions(Map)
+	 */
+	public Future<Integer> updateGoalCompletions(final Map<Long, Integer> completions,
+			GoalProviderCallback<Integer> callback)
+	{
+		return write(new Callable<Integer>()
+		{
+			public Integer call()
+			{
+				return mProvider.updateGoalCompletions(completions);
+			}
+		}, callback);
+	}
+
+	/**
+	 * @see GoalProvider#deleteGoal(long)
+	 */
+	public Future<Boolean> deleteGoal(final long id, GoalProviderCallback<Boolean> callback)
+	{
+		return write(new Callable<Boolean>()
+		{
+			public Boolean call()
+			{
+				return mProvider.deleteGoal(id);
+			}
+		}, callback);
+	}
+
+	/**
+	 * @see GoalProvider#migrate()
+	 */
+	public Future<Boolean> migrate(GoalProviderCallback<Boolean> callback)
+	{
+		return write(new Callable<Boolean>()
+		{
+			public Boolean call()
+			{
+				return mProvider.migrate();
+			}
+		}, callback);
+	}
+
+	/**
+	 * @see ImExport#importFromXml(GoalProvider, String, Context)
+	 */
+	public Future<Boolean> importFromXml(final String filename, Context context,
+			GoalProviderCallback<Boolean> callback)
+	{
+		// don't keep the Activity alive while waiting for the writer
+		final Context appContext = context.getApplicationContext();
+		return write(new Callable<Boolean>()
+		{
+			public Boolean call()
+			{
+				return ImExport.importFromXml(mProvider, filename, appContext);
+			}
+		}, callback);
+	}
+
+	/**
+	 * @see ImExport#exportToXml(GoalProvider, String, Context)
+	 */
+	public Future<Boolean> exportToXml(final String filename, Context context,
+			GoalProviderCallback<Boolean> callback)
+	{
+		final Context appContext = context.getApplicationContext();
+		return read(new Callable<Boolean>()
+		{
+			public Boolean call()
+			{
+				return ImExport.exportToXml(mProvider, filename, appContext);
+			}
+		}, callback);
+	}
+
+	/**
+	 * @see ImExport#exportToIcs(GoalProvider, Context, String)
+	 */
+	public Future<Boolean> exportToIcs(final String filename, Context context,
+			GoalProviderCallback<Boolean> callback)
+	{
+		final Context appContext = context.getApplicationContext();
+		return read(new Callable<Boolean>()
+		{
+			public Boolean call()
+			{
+				return ImExport.exportToIcs(mProvider, appContext, filename);
+			}
+		}, callback);
+	}
+}
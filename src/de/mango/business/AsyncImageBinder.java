@@ -0,0 +1,157 @@
+/*
+ *  Copyright (C) 2011 Sebastian Dörner
+ *
+ *  This file is part of Mango.
+ *
+ *  Mango is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Mango is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Mango.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package de.mango.business;
+
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.View;
+
+/**
+ * Shows goal images in the views of a list adapter without reading them on the
+ * UI thread. Images in the memory tier of the {@link BitmapCache} are shown
+ * right away, all others are read on a background thread while the view shows
+ * a placeholder.
+ *
+ * When a recycled view is bound to another image, the pending read for it is
+ * cancelled, and if it has already started its result is ignored, so a view
+ * never ends up with the image of a goal it no longer shows.
+ *
+ * Not thread-safe, use it from the UI thread only.
+ *
+ * @param <V>
+ *            Type of the views showing the images
+ */
+public abstract class AsyncImageBinder<V extends View>
+{
+	// shared by all adapters, one at a time keeps the order of the requests
+	private static final ExecutorService sDecoder = Executors
+			.newSingleThreadExecutor(new BackgroundThreadFactory("ImageBinder"));
+	private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+	private final BitmapCache mCache;
+	private final int mSize;
+	// the read each view is waiting for
+	private final HashMap<V, DecodeTask> mPending = new HashMap<V, DecodeTask>();
+
+	/**
+	 * @param size
+	 *            Size of the images, one of the sizes of the {@link BitmapCache}
+	 */
+	public AsyncImageBinder(Context context, int size)
+	{
+		mCache = BitmapCache.getInstance(context);
+		mSize = size;
+	}
+
+	/**
+	 * Shows an image in a view.
+	 *
+	 * @param image
+	 *            The image or null for the placeholder
+	 */
+	protected abstract void setImage(V view, Bitmap image);
+
+	/**
+	 * Shows the image of a goal in a view, replacing whatever the view has
+	 * been bound to before.
+	 *
+	 * @param imageName
+	 *            Image name of the goal, the placeholder is shown for an empty
+	 *            one
+	 */
+	public void bind(V view, String imageName)
+	{
+		cancel(view);
+		if (imageName == null || imageName.length() == 0)
+		{
+			setImage(view, null);
+			return;
+		}
+		Bitmap image = mCache.getCached(imageName, mSize);
+		if (image != null)
+		{
+			setImage(view, image);
+			return;
+		}
+		setImage(view, null);
+		DecodeTask task = new DecodeTask(view, imageName);
+		mPending.put(view, task);
+		task.mFuture = sDecoder.submit(task);
+	}
+
+	/**
+	 * Cancels all pending reads, e.g. when the adapter is closed.
+	 */
+	public void cancelAll()
+	{
+		for (DecodeTask task : mPending.values())
+			task.mFuture.cancel(false);
+		mPending.clear();
+	}
+
+	private void cancel(V view)
+	{
+		DecodeTask task = mPending.remove(view);
+		if (task != null)
+			task.mFuture.cancel(false);
+	}
+
+	/**
+	 * Reads an image on the background thread and shows it on the UI thread if
+	 * the view is still waiting for it.
+	 */
+	private class DecodeTask implements Runnable
+	{
+		final V mView;
+		final String mImageName;
+		Future<?> mFuture;
+
+		DecodeTask(V view, String imageName)
+		{
+			mView = view;
+			mImageName = imageName;
+		}
+
+		public void run()
+		{
+			final Bitmap image = mCache.get(mImageName, mSize);
+			sMainHandler.post(new Runnable()
+			{
+				public void run()
+				{
+					// rebound or cancelled in the meantime
+					if (mPending.get(mView) != DecodeTask.this)
+						return;
+					mPending.remove(mView);
+					if (image != null)
+						setImage(mView, image);
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ *  Copyright (C) 2011 Sebastian Dörner
+ *
+ *  This file is part of Mango.
+ *
+ *  Mango is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Mango is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Mango.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package de.mango.business;
+
+import java.util.concurrent.ThreadFactory;
+
+import android.os.Process;
+
+/**
+ * Creates named daemon threads running with background priority, so they
+ * don't slow down the UI thread.
+ */
+class BackgroundThreadFactory implements ThreadFactory
+{
+	private final String mName;
+	private int mCount = 0;
+
+	/**
+	 * @param name
+	 *            Name of the threads, which is followed by a counter
+	 */
+	BackgroundThreadFactory(String name)
+	{
+		mName = name;
+	}
+
+	public synchronized Thread newThread(final Runnable r)
+	{
+		Thread t = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				r.run();
+			}
+		}, mName + "-" + ++mCount);
+		t.setDaemon(true);
+		return t;
+	}
+}
@@ -0,0 +1,370 @@
+/*
+ *  Copyright (C) 2011 Sebastian Dörner
+ *
+ *  This file is part of Mango.
+ *
+ *  Mango is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Mango is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Mango.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package de.mango.business;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Cache of goal images scaled down to the sizes they are shown in. Images are
+ * looked up in memory first, then in a directory of thumbnails, and only if
+ * both miss the original image is decoded and scaled.
+ *
+ * The memory tier keeps the most recently used thumbnails up to a fixed number
+ * of bytes. The thumbnails on disk are kept until their image is invalidated.
+ *
+ * All methods may be called from any thread.
+ */
+public class BitmapCache
+{
+	private static final boolean DEBUG = false;
+	private static final String TAG = "Mango";
+
+	/** Size of the images in the grid of the main screen */
+	public static final int SIZE_MAIN = 85;
+	/** Size of the images in the hierarchy list */
+	public static final int SIZE_HIERARCHY = 50;
+	/** Size of the images of the subgoals in the detail screen */
+	public static final int SIZE_DETAIL = 40;
+	// all sizes used by the UI, thumbnails of these are created in advance
+	private static final int[] SIZES = { SIZE_MAIN, SIZE_HIERARCHY, SIZE_DETAIL };
+
+	// a small part of the 16 MB heap of the first devices
+	private static final int MAX_MEMORY_BYTES = 1024 * 1024;
+	private static final String THUMBNAIL_DIR = "thumbnails";
+
+	private static BitmapCache sInstance;
+	// creates thumbnails of existing images
+	private static final ExecutorService sThumbnailWriter = Executors
+			.newSingleThreadExecutor(new BackgroundThreadFactory("ThumbnailWriter"));
+	private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+	private final Context mContext;
+	private final File mThumbnailDir;
+	// least recently used first, keys as returned by key()
+	private final LinkedHashMap<String, Bitmap> mBitmaps = new LinkedHashMap<String, Bitmap>(16,
+			0.75f, true);
+	private int mBytes = 0;
+	// how images have been found, logged in put() when debugging
+	private int mMemoryHits = 0;
+	private int mDiskHits = 0;
+	private int mMisses = 0;
+
+	private BitmapCache(Context context)
+	{
+		mContext = context;
+		mThumbnailDir = context.getDir(THUMBNAIL_DIR, Context.MODE_PRIVATE);
+	}
+
+	/**
+	 * @return The cache shared by the whole application
+	 */
+	public static synchronized BitmapCache getInstance(Context context)
+	{
+		if (sInstance == null)
+			sInstance = new BitmapCache(context.getApplicationContext());
+		return sInstance;
+	}
+
+	/**
+	 * Gets an image scaled to fit into a square, keeping its aspect ratio.
+	 * Images smaller than the square are not scaled.
+	 *
+	 * @param imageName
+	 *            Local file name of the image, as stored in the goal
+	 * @param size
+	 *            Maximum width and height
+	 * @return The scaled image or null if it cannot be read
+	 */
+	public Bitmap get(String imageName, int size)
+	{
+		final String key = key(imageName, size);
+		synchronized (this)
+		{
+			Bitmap bitmap = mBitmaps.get(key);
+			if (bitmap != null)
+			{
+				mMemoryHits++;
+				return bitmap;
+			}
+		}
+		// decode without holding the lock, it takes a while
+		File thumbnail = thumbnailFile(key);
+		Bitmap bitmap = thumbnail.exists() ? BitmapFactory.decodeFile(thumbnail.getPath())
+				: null;
+		final boolean diskHit = bitmap != null;
+		if (!diskHit)
+		{
+			bitmap = createThumbnail(imageName, size);
+			if (bitmap == null)
+				return null;
+			writeThumbnail(bitmap, thumbnail);
+		}
+		synchronized (this)
+		{
+			if (diskHit)
+				mDiskHits++;
+			else
+				mMisses++;
+			put(key, bitmap);
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Gets an image only if it is in memory, which is fast enough for the UI
+	 * thread.
+	 *
+	 * @return The scaled image or null if {@link #get(String, int)} has to
+	 *         read it
+	 */
+	public synchronized Bitmap getCached(String imageName, int size)
+	{
+		Bitmap bitmap = mBitmaps.get(key(imageName, size));
+		if (bitmap != null)
+			mMemoryHits++;
+		return bitmap;
+	}
+
+	/**
+	 * Writes the thumbnails of all sizes used by the UI for a new image, so
+	 * they never have to be created from the original.
+	 *
+	 * @param imageName
+	 *            Local file name the image has been saved as
+	 * @param image
+	 *            The image, which is not changed
+	 */
+	public void createThumbnails(String imageName, Bitmap image)
+	{
+		for (int size : SIZES)
+		{
+			Bitmap thumbnail = scale(image, size);
+			writeThumbnail(thumbnail, thumbnailFile(key(imageName, size)));
+			if (thumbnail != image)
+				thumbnail.recycle();
+		}
+	}
+
+	/**
+	 * Creates the missing thumbnails of all local images on a background
+	 * thread. Only needed once for images saved before thumbnails were
+	 * created along with them.
+	 *
+	 * @param callback
+	 *            Called on the UI thread afterwards with the number of images
+	 *            which got new thumbnails, may be null
+	 */
+	public void createMissingThumbnails(final GoalProviderCallback<Integer> callback)
+	{
+		sThumbnailWriter.execute(new Runnable()
+		{
+			public void run()
+			{
+				int count = 0;
+				for (String name : mContext.fileList())
+					if (name.endsWith(".png") && createMissingThumbnails(name))
+						count++;
+				if (callback == null)
+					return;
+				final int result = count;
+				sMainHandler.post(new Runnable()
+				{
+					public void run()
+					{
+						callback.action(result);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Creates the thumbnails of an image which do not exist yet, decoding the
+	 * original at most once.
+	 *
+	 * @return Whether any thumbnail has been written
+	 */
+	private boolean createMissingThumbnails(String imageName)
+	{
+		Bitmap original = null;
+		for (int size : SIZES)
+		{
+			File thumbnail = thumbnailFile(key(imageName, size));
+			if (thumbnail.exists())
+				continue;
+			if (original == null)
+			{
+				// large enough for all sizes
+				original = ImageHandling.loadLocalBitmap(imageName, mContext, SIZE_MAIN,
+						SIZE_MAIN);
+				if (original == null)
+					return false;
+			}
+			Bitmap scaled = scale(original, size);
+			writeThumbnail(scaled, thumbnail);
+			if (scaled != original)
+				scaled.recycle();
+		}
+		if (original == null)
+			return false;
+		original.recycle();
+		return true;
+	}
+
+	/**
+	 * Forgets all thumbnails of an image, in memory and on disk. Must be
+	 * called whenever an image file is deleted or written.
+	 */
+	public void invalidate(String imageName)
+	{
+		if (imageName == null || imageName.length() == 0)
+			return;
+		final String prefix = imageName + "@";
+		synchronized (this)
+		{
+			for (Iterator<Map.Entry<String, Bitmap>> it = mBitmaps.entrySet().iterator(); it
+					.hasNext();)
+			{
+				Map.Entry<String, Bitmap> entry = it.next();
+				if (entry.getKey().startsWith(prefix))
+				{
+					mBytes -= sizeOf(entry.getValue());
+					it.remove();
+				}
+			}
+		}
+		File[] thumbnails = mThumbnailDir.listFiles();
+		if (thumbnails == null)
+			return;
+		final String filePrefix = prefix.replace('/', '_');
+		for (File f : thumbnails)
+			if (f.getName().startsWith(filePrefix))
+				f.delete();
+	}
+
+	private static String key(String imageName, int size)
+	{
+		return imageName + "@" + size;
+	}
+
+	private File thumbnailFile(String key)
+	{
+		// image names may be absolute paths
+		return new File(mThumbnailDir, key.replace('/', '_') + ".png");
+	}
+
+	private void put(String key, Bitmap bitmap)
+	{
+		// another thread may have loaded it in the meantime
+		Bitmap old = mBitmaps.put(key, bitmap);
+		if (old != null)
+			mBytes -= sizeOf(old);
+		mBytes += sizeOf(bitmap);
+		int evicted = 0;
+		for (Iterator<Bitmap> it = mBitmaps.values().iterator(); mBytes > MAX_MEMORY_BYTES
+				&& it.hasNext();)
+		{
+			Bitmap eldest = it.next();
+			// keep at least the new one
+			if (eldest == bitmap)
+				break;
+			mBytes -= sizeOf(eldest);
+			it.remove();
+			evicted++;
+		}
+		if (DEBUG && evicted > 0)
+			Log.d(TAG, "Evicted " + evicted + " images, " + mMemoryHits + " memory hits, "
+					+ mDiskHits + " disk hits, " + mMisses + " misses so far");
+	}
+
+	private static int sizeOf(Bitmap bitmap)
+	{
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
+
+	private Bitmap createThumbnail(String imageName, int size)
+	{
+		Bitmap original = ImageHandling.loadLocalBitmap(imageName, mContext, size, size);
+		if (original == null)
+			return null;
+		Bitmap thumbnail = scale(original, size);
+		if (thumbnail != original)
+			original.recycle();
+		return thumbnail;
+	}
+
+	/**
+	 * Scales an image to fit into a square, keeping its aspect ratio.
+	 *
+	 * @return A new bitmap, or the image itself if it already fits
+	 */
+	private static Bitmap scale(Bitmap image, int size)
+	{
+		final int width = image.getWidth();
+		final int height = image.getHeight();
+		if (width <= size && height <= size)
+			return image;
+		final float scale = Math.min((float) size / width, (float) size / height);
+		return Bitmap.createScaledBitmap(image, Math.max(1, Math.round(width * scale)), Math
+				.max(1, Math.round(height * scale)), true);
+	}
+
+	private static void writeThumbnail(Bitmap bitmap, File file)
+	{
+		FileOutputStream out = null;
+		try
+		{
+			out = new FileOutputStream(file);
+			bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+		} catch (IOException e)
+		{
+			if (DEBUG)
+				Log.w(TAG, "Could not write thumbnail " + file + ": " + e.getMessage());
+		} finally
+		{
+			if (out != null)
+			{
+				try
+				{
+					out.close();
+				} catch (IOException e)
+				{
+					if (DEBUG)
+						Log.w(TAG, e.getMessage());
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ *  Copyright (C) 2011 Sebastian Dörner
+ *
+ *  This file is part of Mango.
+ *
+ *  Mango is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Mango is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Mango.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package de.mango.business;
+
+import java.util.HashMap;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Collects changes of goal completions and writes them together once no
+ * change has been made for a while. Only the latest completion of each goal
+ * is written, and ancestors shared by several changed goals are recalculated
+ * only once.
+ *
+ * Must only be used on the UI thread. Call {@link #flush()} in onPause(), so
+ * no change is lost when the Activity is left.
+ */
+public class CompletionWriteQueue
+{
+	/**
+	 * Time in ms without any change after which pending changes are written.
+	 */
+	public static final long QUIET_PERIOD = 1000;
+
+	private final AsyncGoalProvider mProvider;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	// latest unwritten completion per goal id
+	private HashMap<Long, Integer> mPending = new HashMap<Long, Integer>();
+
+	private final Runnable mWriteRunnable = new Runnable()
+	{
+		public void run()
+		{
+			write();
+		}
+	};
+
+	public CompletionWriteQueue(AsyncGoalProvider gp)
+	{
+		mProvider = gp;
+	}
+
+	/**
+	 * Queues a new completion for a leaf goal, replacing a pending completion
+	 * of the same goal.
+	 *
+	 * @see GoalProvider#updateGoalCompletion(long, int)
+	 */
+	public void updateGoalCompletion(long goalId, int newCompletion)
+	{
+		mPending.put(goalId, newCompletion);
+		mHandler.removeCallbacks(mWriteRunnable);
+		mHandler.postDelayed(mWriteRunnable, QUIET_PERIOD);
+	}
+
+	/**
+	 * Submits all pending changes to the writer thread.
+	 */
+	private void write()
+	{
+		mHandler.removeCallbacks(mWriteRunnable);
+		if (mPending.isEmpty())
+			return;
+		mProvider.updateGoalCompletions(mPending, null);
+		mPending = new HashMap<Long, Integer>();
+	}
+
+	/**
+	 * Submits all pending changes immediately. Does not wait for them to be
+	 * written, the writer thread may be busy with an import for a long time.
+	 * Nothing is lost anyway: the request keeps the database open until it
+	 * has run, and later reads wait for it.
+	 */
+	public void flush()
+	{
+		write();
+	}
+}
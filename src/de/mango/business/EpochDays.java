@@ -0,0 +1,145 @@
+/*
+ *  Copyright (C) 2011 Sebastian Dörner
+ *
+ *  This file is part of Mango.
+ *
+ *  Mango is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Mango is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Mango.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package de.mango.business;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+/**
+ * Conversion between calendar dates and epoch days, i.e. the number of days
+ * since 1970-01-01. Epoch days are how dates are stored in the database.
+ *
+ * Only the date is taken into account, the time of day and time zone are
+ * ignored. This makes the conversion plain arithmetic, which is a lot cheaper
+ * than parsing and formatting date strings.
+ */
+public final class EpochDays
+{
+	private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000;
+
+	private EpochDays()
+	{
+	}
+
+	/**
+	 * @return The epoch day of the current date in the default time zone
+	 */
+	public static int today()
+	{
+		final long now = System.currentTimeMillis();
+		return (int) ((now + TimeZone.getDefault().getOffset(now)) / MILLIS_PER_DAY);
+	}
+
+	/**
+	 * @param year
+	 *            The year, e.g. 2011
+	 * @param month
+	 *            The month from 1 to 12
+	 * @param day
+	 *            The day of the month from 1 to 31
+	 * @return The epoch day of the given date
+	 */
+	public static int fromDate(int year, int month, int day)
+	{
+		// see http://howardhinnant.github.io/date_algorithms.html
+		if (month <= 2)
+			year--;
+		final int era = (year >= 0 ? year : year - 399) / 400;
+		final int yearOfEra = year - era * 400;
+		final int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		final int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+
+	/**
+	 * @return The epoch day of the calendar's date
+	 */
+	public static int fromCalendar(Calendar cal)
+	{
+		return fromDate(cal.get(Calendar.YEAR), cal.get(Calendar.MONTH) + 1, cal
+				.get(Calendar.DAY_OF_MONTH));
+	}
+
+	/**
+	 * @return A calendar set to midnight of the given epoch day in the default
+	 *         time zone
+	 */
+	public static GregorianCalendar toCalendar(int epochDay)
+	{
+		int[] date = toDate(epochDay);
+		return new GregorianCalendar(date[0], date[1] - 1, date[2]);
+	}
+
+	/**
+	 * @return Year, month (1 to 12) and day of month of the given epoch day
+	 */
+	public static int[] toDate(int epochDay)
+	{
+		final int z = epochDay + 719468;
+		final int era = (z >= 0 ? z : z - 146096) / 146097;
+		final int dayOfEra = z - era * 146097;
+		final int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		final int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		final int mp = (5 * dayOfYear + 2) / 153;
+		final int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+		final int month = mp < 10 ? mp + 3 : mp - 9;
+		final int year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+		return new int[] { year, month, day };
+	}
+
+	/**
+	 * Parses an ISO date like 2011-03-27.
+	 *
+	 * @return The epoch day of the date
+	 * @throws NumberFormatException
+	 *             If the string is no date in this format
+	 */
+	public static int parseIso(String date)
+	{
+		final int firstDash = date.indexOf('-', 1);
+		final int secondDash = firstDash < 0 ? -1 : date.indexOf('-', firstDash + 1);
+		if (secondDash < 0)
+			throw new NumberFormatException("Not an ISO date: " + date);
+		final int month = Integer.parseInt(date.substring(firstDash + 1, secondDash));
+		final int day = Integer.parseInt(date.substring(secondDash + 1));
+		if (month < 1 || month > 12 || day < 1 || day > 31)
+			throw new NumberFormatException("Not an ISO date: " + date);
+		return fromDate(Integer.parseInt(date.substring(0, firstDash)), month, day);
+	}
+
+	/**
+	 * @return The epoch day as ISO date like 2011-03-27
+	 */
+	public static String formatIso(int epochDay)
+	{
+		int[] date = toDate(epochDay);
+		StringBuilder sb = new StringBuilder(10);
+		sb.append(date[0]).append('-');
+		if (date[1] < 10)
+			sb.append('0');
+		sb.append(date[1]).append('-');
+		if (date[2] < 10)
+			sb.append('0');
+		sb.append(date[2]);
+		return sb.toString();
+	}
+}
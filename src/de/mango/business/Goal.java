@@ -42,8 +42,13 @@ public class Goal
 	private String imageName;
 	private int completion; // From 0 to 100
 	private int completionWeight; // 1, 2 or 3
-	private GregorianCalendar deadline;
-	private GregorianCalendar timestamp; // date and time of creation
+	// dates are kept as epoch days (see EpochDays), calendars are only created
+	// when asked for and take precedence from then on, as they may be changed
+	private int deadlineDay;
+	private int timestampDay; // date of creation
+	private GregorianCalendar deadline; // may be null
+	private GregorianCalendar timestamp; // may be null
+	private int childCount; // number of direct subgoals
 
 	/**
 	 * Creates a new empty goal
@@ -75,16 +80,59 @@ public class Goal
 	 *            Deadline of the goal (i.e. time when it should be done)
 	 */
 	public Goal(String name, String description, GregorianCalendar deadline)
+	{
+		this(name, description, EpochDays.today(), 0);
+		this.timestampDay = this.deadlineDay;
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Creates a new goal with dates given as epoch days, which does not need
+	 * any calendars.
+	 *
+	 * @param name
+	 *            Name of the goal
+	 * @param description
+	 *            Description of the goal
+	 * @param deadlineDay
+	 *            Epoch day of the deadline
+	 * @param timestampDay
+	 *            Epoch day of the creation
+	 */
+	Goal(String name, String description, int deadlineDay, int timestampDay)
 	{
 		this.name = name != null ? name : "";
 		this.description = description != null ? description : "";
 		this.imageName = "";
 		this.completion = 0;
-		this.deadline = deadline != null ? deadline : new GregorianCalendar();
-		this.timestamp = new GregorianCalendar();
+		this.deadlineDay = deadlineDay;
+		this.timestampDay = timestampDay;
 		this.completionWeight = 1;
 	}
 
+	/**
+	 * Creates a copy of the given goal, which shares no mutable state with it.
+	 *
+	 * @param other
+	 *            The goal to copy
+	 */
+	public Goal(Goal other)
+	{
+		this.id = other.id;
+		this.name = other.name;
+		this.description = other.description;
+		this.imageName = other.imageName;
+		this.completion = other.completion;
+		this.completionWeight = other.completionWeight;
+		this.deadlineDay = other.deadlineDay;
+		this.timestampDay = other.timestampDay;
+		if (other.deadline != null)
+			this.deadline = (GregorianCalendar) other.deadline.clone();
+		if (other.timestamp != null)
+			this.timestamp = (GregorianCalendar) other.timestamp.clone();
+		this.childCount = other.childCount;
+	}
+
 	public long getId()
 	{
 		return id;
@@ -148,6 +196,18 @@ public class Goal
 	 * @return The resource id of the the color
 	 */
 	public int getCompletionColor()
+	{
+		return getCompletionColor(completion);
+	}
+
+	/**
+	 * Gets the id of the color resource corresponding to a goal completion.
+	 *
+	 * @param completion
+	 *            Degree of completion from 0 to 100
+	 * @return The resource id of the the color
+	 */
+	static int getCompletionColor(int completion)
 	{
 		if (completion < 25)
 			return R.color.Progress_low;
@@ -177,14 +237,36 @@ public class Goal
 		this.completionWeight = completionWeight;
 	}
 
+	/**
+	 * @return The deadline, which is created on first call and shared with
+	 *         this goal afterwards
+	 */
 	public GregorianCalendar getDeadline()
 	{
+		if (deadline == null)
+			deadline = EpochDays.toCalendar(deadlineDay);
 		return deadline;
 	}
 
 	public void setDeadline(GregorianCalendar deadline)
 	{
-		this.deadline = deadline != null ? deadline : new GregorianCalendar();
+		this.deadline = deadline;
+		if (deadline == null)
+			this.deadlineDay = EpochDays.today();
+	}
+
+	/**
+	 * @return The epoch day of the deadline
+	 */
+	public int getDeadlineDay()
+	{
+		return deadline != null ? EpochDays.fromCalendar(deadline) : deadlineDay;
+	}
+
+	public void setDeadlineDay(int deadlineDay)
+	{
+		this.deadline = null;
+		this.deadlineDay = deadlineDay;
 	}
 
 	/**
@@ -193,20 +275,54 @@ public class Goal
 	 */
 	public String getFormattedDeadline()
 	{
-		GregorianCalendar dl = this.deadline;
 		DateFormat sdf = DateFormat.getDateInstance(DateFormat.MEDIUM);
-		return sdf.format(dl.getTime());
+		return sdf.format(getDeadline().getTime());
 	}
 
+	/**
+	 * @return The creation date, which is created on first call and shared
+	 *         with this goal afterwards
+	 */
 	public GregorianCalendar getTimestamp()
 	{
+		if (timestamp == null)
+			timestamp = EpochDays.toCalendar(timestampDay);
 		return timestamp;
 	}
 
 	public void setTimestamp(GregorianCalendar timestamp)
 	{
-		this.timestamp = timestamp != null ? timestamp
-				: new GregorianCalendar();
+		this.timestamp = timestamp;
+		if (timestamp == null)
+			this.timestampDay = EpochDays.today();
+	}
+
+	/**
+	 * @return The epoch day of the creation
+	 */
+	public int getTimestampDay()
+	{
+		return timestamp != null ? EpochDays.fromCalendar(timestamp) : timestampDay;
+	}
+
+	public void setTimestampDay(int timestampDay)
+	{
+		this.timestamp = null;
+		this.timestampDay = timestampDay;
+	}
+
+	/**
+	 * @return The number of direct subgoals as known when the goal was read
+	 *         from the GoalProvider
+	 */
+	public int getChildCount()
+	{
+		return childCount;
+	}
+
+	public void setChildCount(int childCount)
+	{
+		this.childCount = childCount;
 	}
 
 	/**
@@ -216,6 +332,7 @@ public class Goal
 	{
 		if (this.imageName.length()==0)
 			return;
+		BitmapCache.getInstance(c).invalidate(this.imageName);
 		File imageFile = c.getFileStreamPath(this.imageName);
 		if (imageFile.exists())
 			imageFile.delete();
@@ -231,8 +348,9 @@ public class Goal
 	 */
 	public void putCalendarExtras(Intent i)
 	{
-		i.putExtra("beginTime", deadline.getTime().getTime());
-		i.putExtra("endTime", deadline.getTime().getTime() + 1);
+		final long deadlineMillis = getDeadline().getTimeInMillis();
+		i.putExtra("beginTime", deadlineMillis);
+		i.putExtra("endTime", deadlineMillis + 1);
 		i.putExtra("allDay", true);
 		i.putExtra("title", this.name);
 		i.putExtra("description", this.description);
@@ -0,0 +1,54 @@
+/*
+ *  Copyright (C) 2011 Sebastian Dörner
+ *
+ *  This file is part of Mango.
+ *
+ *  Mango is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Mango is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Mango.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package de.mango.business;
+
+/**
+ * Interface for being notified about changes of the goals in a
+ * {@link GoalProvider}.
+ */
+public interface GoalChangeListener
+{
+	/** A goal has been inserted. */
+	public static final int INSERTED = 1;
+	/** The attributes of a goal have been changed. */
+	public static final int UPDATED = 2;
+	/** A goal has been deleted together with all its descendants. */
+	public static final int DELETED = 3;
+	/** Only the completion of a goal has changed. */
+	public static final int COMPLETION_CHANGED = 4;
+	/** Anything may have changed, all goals should be reloaded. */
+	public static final int RELOAD = 5;
+
+	/**
+	 * Method to be called on the UI thread after goals have been changed.
+	 * When it is called, the GoalProvider already returns the changed goals.
+	 *
+	 * @param type
+	 *            One of INSERTED, UPDATED, DELETED, COMPLETION_CHANGED and
+	 *            RELOAD
+	 * @param goalId
+	 *            Id of the changed goal, -1 for RELOAD
+	 * @param parentId
+	 *            Id of the parent of the changed goal, -1 for top level goals
+	 *            and RELOAD
+	 */
+	public void onGoalChanged(int type, long goalId, long parentId);
+}
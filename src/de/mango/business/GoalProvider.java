@@ -22,30 +22,120 @@ package de.mango.business;
 
 import java.io.File;
 import java.sql.SQLException;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.GregorianCalendar;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
+/**
+ * Access to the goals stored in the database. There is one provider for the
+ * whole application, which Activities share via {@link #acquire(Context)} and
+ * {@link #release()}. The database is opened on first use and stays open
+ * until the last user has released the provider.
+ *
+ * All methods may be called from any thread. Reads are answered from an
+ * in-memory copy of the goal tree, writes are serialized. Changes are
+ * reported to {@link GoalChangeListener}s on the UI thread.
+ */
 public class GoalProvider
 {
 
 	public static final boolean DEBUG = false;
 	public static final String TAG = "Mango";
 
-	private static final int DATABASE_VERSION = 1;
+	private static final int DATABASE_VERSION = 5;
 	private static final String DATABASE_NAME="mango.db";
 	private static final String GOALS_TABLE_NAME = "goals";
-	private static final SimpleDateFormat SDF = new SimpleDateFormat(
-		"yyyy-MM-dd");
+	// closure table with one row for each goal and each of its ancestors,
+	// including the goal itself at depth 0
+	private static final String ANCESTORS_TABLE_NAME = "goal_ancestors";
+	// goals table of schema version 2, which is migrated by migrate()
+	private static final String LEGACY_GOALS_TABLE_NAME = "goals_v2";
+	private static final int MIGRATION_CHUNK_SIZE = 500;
+	// goals inserted per transaction during a bulk insert
+	private static final int BULK_INSERT_BATCH_SIZE = 500;
+
+	// statements run for single goals, compiled once per provider
+	private static final String SQL_INSERT_GOAL = "INSERT INTO " + GOALS_TABLE_NAME +
+			" (parent, name, description, imageName, completionWeight, deadline, timestamp," +
+			" completion) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+	private static final String SQL_UPDATE_GOAL = "UPDATE " + GOALS_TABLE_NAME +
+			" SET name=?, description=?, imageName=?, completionWeight=?, deadline=?," +
+			" timestamp=? WHERE id=?";
+	private static final String SQL_UPDATE_GOAL_WITH_COMPLETION = "UPDATE " + GOALS_TABLE_NAME +
+			" SET name=?, description=?, imageName=?, completionWeight=?, deadline=?," +
+			" timestamp=?, completion=? WHERE id=?";
+	private static final String SQL_UPDATE_COMPLETION = "UPDATE " + GOALS_TABLE_NAME +
+			" SET completion=? WHERE id=?";
+	private static final String SQL_UPDATE_AGGREGATES = "UPDATE " + GOALS_TABLE_NAME +
+			" SET completion=?, completionSum=?, weightSum=? WHERE id=?";
+	private static final String SQL_ADJUST_CHILD_COUNT = "UPDATE " + GOALS_TABLE_NAME +
+			" SET childCount = childCount + ? WHERE id=?";
+	private static final String SQL_INSERT_SELF_ANCESTOR = "INSERT INTO " +
+			ANCESTORS_TABLE_NAME + " (ancestor, descendant, depth) VALUES (?, ?, 0)";
+	private static final String SQL_INSERT_ANCESTORS = "INSERT INTO " + ANCESTORS_TABLE_NAME +
+			" (ancestor, descendant, depth) SELECT ancestor, ?, depth + 1 FROM " +
+			ANCESTORS_TABLE_NAME + " WHERE descendant=?";
+	private static final String SQL_GOAL_WITH_ID = "SELECT * FROM " + GOALS_TABLE_NAME +
+			" WHERE id=?";
+	// columns of a GoalSummary, in the order read by getSummaryFromCursor()
+	private static final String SUMMARY_COLUMNS = "id, parent, name, imageName, completion," +
+			" completionWeight, childCount";
+	private static final String SQL_COUNT_TOP_LEVEL_GOALS = "SELECT COUNT(*) FROM " +
+			GOALS_TABLE_NAME + " WHERE parent IS NULL";
+	// keyset paging: continues after the last id of the previous page, which
+	// unlike an OFFSET does not have to skip over all rows before the page
+	private static final String SQL_TOP_LEVEL_PAGE_AFTER = "SELECT " + SUMMARY_COLUMNS +
+			" FROM " + GOALS_TABLE_NAME + " WHERE parent IS NULL AND id>? ORDER BY id LIMIT ?";
+	private static final String SQL_TOP_LEVEL_PAGE_AT = "SELECT " + SUMMARY_COLUMNS +
+			" FROM " + GOALS_TABLE_NAME + " WHERE parent IS NULL ORDER BY id LIMIT ? OFFSET ?";
+	// deepest level of the tree containing goals from the given id on
+	private static final String SQL_MAX_DEPTH_FROM = "SELECT COALESCE(MAX(depth), -1) FROM " +
+			ANCESTORS_TABLE_NAME + " WHERE descendant >= ?";
+	// recalculates all goals on the given level which have descendants from
+	// the given id on and children, from the current values of the children
+	private static final String SQL_UPDATE_LEVEL_AGGREGATES = "UPDATE " + GOALS_TABLE_NAME +
+			" SET completionSum = (SELECT SUM(c.completion * c.completionWeight) FROM " +
+			GOALS_TABLE_NAME + " c WHERE c.parent = " + GOALS_TABLE_NAME + ".id)," +
+			" weightSum = (SELECT SUM(c.completionWeight) FROM " + GOALS_TABLE_NAME +
+			" c WHERE c.parent = " + GOALS_TABLE_NAME + ".id)," +
+			" completion = (SELECT SUM(c.completion * c.completionWeight) /" +
+			" SUM(c.completionWeight) FROM " + GOALS_TABLE_NAME + " c WHERE c.parent = " +
+			GOALS_TABLE_NAME + ".id)" +
+			" WHERE childCount > 0 AND id IN (SELECT ancestor FROM " + ANCESTORS_TABLE_NAME +
+			" WHERE descendant >= ?) AND (SELECT MAX(depth) FROM " + ANCESTORS_TABLE_NAME +
+			" WHERE descendant = " + GOALS_TABLE_NAME + ".id) = ?";
+	private static final String SQL_RECOUNT_CHILDREN = "UPDATE " + GOALS_TABLE_NAME +
+			" SET childCount = (SELECT COUNT(*) FROM " + GOALS_TABLE_NAME +
+			" c WHERE c.parent = " + GOALS_TABLE_NAME + ".id) WHERE id=?";
+	private static final String SQL_GOAL_TABLE = "SELECT id, parent, name, description," +
+			" imageName, completion, completionWeight, deadline, timestamp FROM " +
+			GOALS_TABLE_NAME + " ORDER BY id";
+	private static final String SQL_SUBTREE = "SELECT descendant FROM " +
+			ANCESTORS_TABLE_NAME + " WHERE ancestor=?";
+	private static final String SQL_DELETE_SUBTREE = "DELETE FROM " + GOALS_TABLE_NAME +
+			" WHERE id IN (" + SQL_SUBTREE + ")";
+	private static final String SQL_DELETE_SUBTREE_ANCESTORS = "DELETE FROM " +
+			ANCESTORS_TABLE_NAME + " WHERE descendant IN (" + SQL_SUBTREE + ")";
+
+	// deletes the images of deleted goals
+	private static final ExecutorService sImageCleaner = Executors
+			.newSingleThreadExecutor(new BackgroundThreadFactory("ImageCleaner"));
 
  	private static class GoalDBOpenHelper extends SQLiteOpenHelper
 	{
@@ -63,57 +153,584 @@ public class GoalProvider
 					"imageName TEXT," +
 					"completion INTEGER NOT NULL," +
 					"completionWeight INTEGER NOT NULL,"+
-					"deadline TEXT NOT NULL," +
-					"timestamp TEXT NOT NULL)");
+					"deadline INTEGER NOT NULL," + // in epoch days
+					"timestamp INTEGER NOT NULL," + // in epoch days
+					"completionSum INTEGER NOT NULL DEFAULT 0," +
+					"weightSum INTEGER NOT NULL DEFAULT 0," +
+					"childCount INTEGER NOT NULL DEFAULT 0)");
+			db.execSQL("CREATE INDEX " + GOALS_TABLE_NAME + "_parent ON " +
+					GOALS_TABLE_NAME + " (parent)");
+			createAncestorsTable(db);
+		}
+
+		private void createAncestorsTable(SQLiteDatabase db) {
+			db.execSQL("CREATE TABLE " + ANCESTORS_TABLE_NAME + " (" +
+					"ancestor INTEGER NOT NULL," +
+					"descendant INTEGER NOT NULL," +
+					"depth INTEGER NOT NULL," +
+					"PRIMARY KEY (ancestor, descendant))");
+			db.execSQL("CREATE INDEX " + ANCESTORS_TABLE_NAME + "_descendant ON " +
+					ANCESTORS_TABLE_NAME + " (descendant)");
 		}
 
 		@Override
 		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion)
 		{
-			// initial version needs no upgrade
+			if (oldVersion < 2) {
+				// denormalized completion aggregates
+				db.execSQL("ALTER TABLE " + GOALS_TABLE_NAME +
+						" ADD COLUMN completionSum INTEGER NOT NULL DEFAULT 0");
+				db.execSQL("ALTER TABLE " + GOALS_TABLE_NAME +
+						" ADD COLUMN weightSum INTEGER NOT NULL DEFAULT 0");
+				rebuildCompletionAggregates(db);
+			}
+			if (oldVersion < 3) {
+				// Dates become integers, which needs a new table. Copying
+				// the goals may take long, so this is done in chunks on the
+				// writer thread, see migrate().
+				db.execSQL("ALTER TABLE " + GOALS_TABLE_NAME + " RENAME TO " +
+						LEGACY_GOALS_TABLE_NAME);
+				onCreate(db);
+				// don't reuse ids of deleted goals
+				db.execSQL("INSERT INTO sqlite_sequence (name, seq) SELECT '" +
+						GOALS_TABLE_NAME + "', seq FROM sqlite_sequence WHERE name='" +
+						LEGACY_GOALS_TABLE_NAME + "'");
+			}
+			if (oldVersion == 3) {
+				// Ancestors of each goal. For older versions, onCreate() has
+				// created the table above and migrateLegacyGoals() fills it.
+				createAncestorsTable(db);
+				rebuildAncestors(db);
+			}
+			if (oldVersion >= 3 && oldVersion < 5) {
+				// For older versions, onCreate() has created the column above
+				// and migrateLegacyGoals() fills it.
+				db.execSQL("ALTER TABLE " + GOALS_TABLE_NAME +
+						" ADD COLUMN childCount INTEGER NOT NULL DEFAULT 0");
+				rebuildChildCounts(db);
+			}
+		}
+	}
+
+	/**
+	 * Sets the childCount column of all goals from the parent column.
+	 */
+	private static void rebuildChildCounts(SQLiteDatabase db) {
+		db.execSQL("UPDATE " + GOALS_TABLE_NAME + " SET childCount = (SELECT COUNT(*) FROM " +
+				GOALS_TABLE_NAME + " c WHERE c.parent = " + GOALS_TABLE_NAME + ".id)");
+	}
+
+	/**
+	 * Fills the ancestors table from the parent column of all goals, one
+	 * level of ancestors after the other.
+	 */
+	private static void rebuildAncestors(SQLiteDatabase db) {
+		db.execSQL("DELETE FROM " + ANCESTORS_TABLE_NAME);
+		db.execSQL("INSERT INTO " + ANCESTORS_TABLE_NAME + " (ancestor, descendant, depth) " +
+				"SELECT id, id, 0 FROM " + GOALS_TABLE_NAME);
+		SQLiteStatement addLevel = db.compileStatement("INSERT INTO " + ANCESTORS_TABLE_NAME +
+				" (ancestor, descendant, depth) SELECT g.parent, a.descendant, a.depth + 1 " +
+				"FROM " + ANCESTORS_TABLE_NAME + " a JOIN " + GOALS_TABLE_NAME +
+				" g ON g.id = a.ancestor WHERE a.depth = ? AND g.parent IS NOT NULL");
+		SQLiteStatement changes = db.compileStatement("SELECT changes()");
+		int depth = 0;
+		do {
+			addLevel.bindLong(1, depth++);
+			addLevel.execute();
+		} while (changes.simpleQueryForLong() > 0);
+		addLevel.close();
+		changes.close();
+	}
+
+	/**
+	 * @return SQL expression converting a "yyyy-MM-dd" date column of schema
+	 *         version 2 to epoch days, using today for invalid dates
+	 */
+	private static String legacyDateToEpochDays(String column) {
+		return "IFNULL(CAST(julianday(" + column + ") - 2440587.5 AS INTEGER), " +
+				"CAST(julianday('now', 'localtime') - 2440587.5 AS INTEGER))";
+	}
+
+	/**
+	 * Moves the goals of schema version 2 over to the current table. Each chunk
+	 * of goals is converted and moved in its own transaction, so an
+	 * interrupted migration continues where it stopped on the next start.
+	 *
+	 * @return Whether there was anything to migrate
+	 */
+	private static boolean migrateLegacyGoals(SQLiteDatabase db) {
+		SQLiteStatement legacyTableExists = db.compileStatement(
+				"SELECT COUNT(*) FROM sqlite_master WHERE type='table' AND name='" +
+				LEGACY_GOALS_TABLE_NAME + "'");
+		boolean pending = legacyTableExists.simpleQueryForLong() > 0;
+		legacyTableExists.close();
+		if (!pending)
+			return false;
+
+		final String chunk = "SELECT id FROM " + LEGACY_GOALS_TABLE_NAME +
+				" ORDER BY id LIMIT " + MIGRATION_CHUNK_SIZE;
+		final String columns = "id, parent, name, description, imageName, completion, " +
+				"completionWeight, deadline, timestamp, completionSum, weightSum";
+		SQLiteStatement remainingGoals = db.compileStatement("SELECT COUNT(*) FROM " +
+				LEGACY_GOALS_TABLE_NAME);
+		long remaining;
+		do {
+			db.beginTransaction();
+			try {
+				db.execSQL("INSERT INTO " + GOALS_TABLE_NAME + " (" + columns + ") " +
+						"SELECT id, parent, name, description, imageName, completion, " +
+						"completionWeight, " + legacyDateToEpochDays("deadline") + ", " +
+						legacyDateToEpochDays("timestamp") + ", completionSum, weightSum " +
+						"FROM " + LEGACY_GOALS_TABLE_NAME + " WHERE id IN (" + chunk + ")");
+				db.execSQL("DELETE FROM " + LEGACY_GOALS_TABLE_NAME + " WHERE id IN (" +
+						chunk + ")");
+				remaining = remainingGoals.simpleQueryForLong();
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+			if (DEBUG)
+				Log.d(TAG, "Migrating goals, " + remaining + " left");
+		} while (remaining > 0);
+		remainingGoals.close();
+		db.beginTransaction();
+		try {
+			rebuildAncestors(db);
+			rebuildChildCounts(db);
+			db.execSQL("DROP TABLE " + LEGACY_GOALS_TABLE_NAME);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		return true;
+	}
+
+	/**
+	 * Recalculates the completion aggregates of all goals from their children.
+	 * Works bottom-up, so the completion of all non-leaves is recalculated as
+	 * well.
+	 */
+	private static class CompletionAggregatesBuilder
+	{
+		private final long[] ids;
+		private final int[] completion;
+		private final int[] weight;
+		private final int[] completionSum;
+		private final int[] weightSum;
+		// children as linked lists of positions, -1 terminated
+		private final int[] firstChild;
+		private final int[] nextSibling;
+
+		CompletionAggregatesBuilder(SQLiteDatabase db) {
+			Cursor c = db.query(GOALS_TABLE_NAME, new String[] { "id", "parent", "completion",
+					"completionWeight" }, null, null, null, null, "id");
+			final int count = c.getCount();
+			ids = new long[count];
+			completion = new int[count];
+			weight = new int[count];
+			completionSum = new int[count];
+			weightSum = new int[count];
+			firstChild = new int[count];
+			nextSibling = new int[count];
+			long[] parentIds = new long[count];
+			HashMap<Long, Integer> positions = new HashMap<Long, Integer>(count * 2);
+			int i = 0;
+			for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext(), i++) {
+				ids[i] = c.getLong(0);
+				parentIds[i] = c.isNull(1) ? -1 : c.getLong(1);
+				completion[i] = c.getInt(2);
+				weight[i] = c.getInt(3);
+				positions.put(ids[i], i);
+			}
+			c.close();
+			Arrays.fill(firstChild, -1);
+			// prepend backwards to keep the children in id order
+			for (i = count - 1; i >= 0; i--) {
+				Integer parent = positions.get(parentIds[i]);
+				nextSibling[i] = parent == null ? -1 : firstChild[parent];
+				if (parent != null)
+					firstChild[parent] = i;
+			}
+			for (i = 0; i < count; i++)
+				if (positions.get(parentIds[i]) == null)
+					build(i);
+		}
+
+		/**
+		 * @return the completion of the goal at the given position
+		 */
+		private int build(int position) {
+			for (int child = firstChild[position]; child != -1; child = nextSibling[child]) {
+				completionSum[position] += build(child) * weight[child];
+				weightSum[position] += weight[child];
+			}
+			if (weightSum[position] > 0)
+				completion[position] = completionSum[position] / weightSum[position];
+			return completion[position];
+		}
+
+		void write(SQLiteDatabase db) {
+			SQLiteStatement update = db.compileStatement("UPDATE " + GOALS_TABLE_NAME +
+					" SET completion=?, completionSum=?, weightSum=? WHERE id=?");
+			for (int i = 0; i < ids.length; i++) {
+				update.bindLong(1, completion[i]);
+				update.bindLong(2, completionSum[i]);
+				update.bindLong(3, weightSum[i]);
+				update.bindLong(4, ids[i]);
+				update.execute();
+			}
+			update.close();
 		}
 	}
 
+	private static void rebuildCompletionAggregates(SQLiteDatabase db) {
+		new CompletionAggregatesBuilder(db).write(db);
+	}
+
+	/**
+	 * In-memory goal tree serving all reads. Shared by all providers, as they
+	 * all work on the same database, and loaded on first access.
+	 */
+	private static volatile GoalTreeCache sCache;
+	// counts invalidations, a cache loaded before one of them is not published
+	private static int sCacheGeneration = 0;
+
+	// the shared provider and the number of its users
+	private static GoalProvider sInstance;
+	private static int sRefCount = 0;
+
 	private final Context context;
 	private final GoalDBOpenHelper dbHelper;
-	private final SQLiteDatabase db;
+	// opened on first use, see getDb(), volatile so that code inside a
+	// transaction gets them without taking a lock
+	private volatile SQLiteDatabase db;
+	private volatile StatementPool statements;
+	// set by close(), guarded by this
+	private boolean mClosed = false;
+	// serializes all writes, held during a whole bulk insert
+	private final ReentrantLock mWriteLock = new ReentrantLock();
 
+	private final CopyOnWriteArrayList<GoalChangeListener> mChangeListeners =
+		new CopyOnWriteArrayList<GoalChangeListener>();
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
 
-	public GoalProvider(Context context) throws SQLiteException {
-		dbHelper = new GoalDBOpenHelper(context);
-		db = dbHelper.getWritableDatabase();
+	// nesting depth of the running beginWriteTransaction(), whether any
+	// level of it has failed and the changes to report once it has been
+	// committed, all guarded by mWriteLock
+	private int mTransactionDepth = 0;
+	private boolean mTransactionFailed;
+	private final ArrayList<long[]> mTransactionChanges = new ArrayList<long[]>();
+
+	// state of the current bulk insert, see beginBulkInsert()
+	private boolean mInBulkInsert = false;
+	private boolean mBulkInsertSuccessful;
+	// id of the first goal inserted during the current bulk insert
+	private long mBulkInsertFirstId;
+	// goals inserted since the last commit of the current bulk insert
+	private int mBulkInsertBatchSize;
+	private boolean mBulkInsertCommitted;
+	// existing goals which got new children during the bulk insert
+	private final HashSet<Long> mBulkInsertParents = new HashSet<Long>();
+
+
+	private GoalProvider(Context context) {
 		this.context = context;
+		dbHelper = new GoalDBOpenHelper(context);
+	}
+
+	/**
+	 * Gets the shared provider, creating it if necessary. Every call has to be
+	 * matched by a call of {@link #release()} once the provider is not needed
+	 * anymore, e.g. in onCreate() and onDestroy() of an Activity.
+	 *
+	 * @param context
+	 *            Any context, only its application context is kept
+	 * @return The shared provider
+	 */
+	public static GoalProvider acquire(Context context) {
+		synchronized (GoalProvider.class) {
+			if (sInstance == null)
+				sInstance = new GoalProvider(context.getApplicationContext());
+			sRefCount++;
+			return sInstance;
+		}
 	}
 
+	/**
+	 * Adds another reference to a provider which is still in use, e.g. to
+	 * keep the database open until a background task has finished. Has to be
+	 * matched by a call of {@link #release()}.
+	 */
+	void retain() {
+		synchronized (GoalProvider.class) {
+			if (sInstance != this)
+				throw new IllegalStateException("GoalProvider has already been released");
+			sRefCount++;
+		}
+	}
+
+	/**
+	 * Gives up a reference obtained by {@link #acquire(Context)}. The database
+	 * is closed when the last reference has been released. The provider must
+	 * not be used after releasing it.
+	 */
+	public void release() {
+		synchronized (GoalProvider.class) {
+			if (sRefCount == 0)
+				throw new IllegalStateException("GoalProvider released too often");
+			if (--sRefCount > 0)
+				return;
+			sInstance = null;
+		}
+		mWriteLock.lock();
+		try {
+			close();
+		} finally {
+			mWriteLock.unlock();
+		}
+	}
+
+	/**
+	 * Registers a listener to be notified about all changes of goals.
+	 */
+	public void addChangeListener(GoalChangeListener listener) {
+		mChangeListeners.add(listener);
+	}
+
+	public void removeChangeListener(GoalChangeListener listener) {
+		mChangeListeners.remove(listener);
+	}
+
+	/**
+	 * Notifies all listeners on the UI thread. Nothing is reported during a
+	 * bulk insert, it is reported as RELOAD when it has ended. Changes made in
+	 * a transaction started by beginWriteTransaction() are reported once it
+	 * has been committed. Must be called with mWriteLock held.
+	 */
+	private void notifyChange(int type, long goalId, long parentId) {
+		if (mInBulkInsert || mChangeListeners.isEmpty())
+			return;
+		long[] change = new long[] { type, goalId, parentId };
+		if (mTransactionDepth > 0) {
+			mTransactionChanges.add(change);
+			return;
+		}
+		ArrayList<long[]> changes = new ArrayList<long[]>(1);
+		changes.add(change);
+		postChanges(changes);
+	}
+
+	/**
+	 * Passes changes to all listeners on the UI thread, in order.
+	 *
+	 * @param changes
+	 *            Type, goal id and parent id of each change
+	 */
+	private void postChanges(final ArrayList<long[]> changes) {
+		if (changes.isEmpty())
+			return;
+		mMainHandler.post(new Runnable() {
+			public void run() {
+				for (long[] change : changes)
+					for (GoalChangeListener listener : mChangeListeners)
+						listener.onGoalChanged((int) change[0], change[1], change[2]);
+			}
+		});
+	}
+
+	/**
+	 * Begins a transaction whose changes are reported to the listeners only
+	 * after it has been committed. May be nested, like database transactions.
+	 * Must be called with mWriteLock held and matched by
+	 * endWriteTransaction().
+	 */
+	private SQLiteDatabase beginWriteTransaction() {
+		SQLiteDatabase db = getDb();
+		db.beginTransaction();
+		if (mTransactionDepth++ == 0)
+			mTransactionFailed = false;
+		return db;
+	}
+
+	/**
+	 * Ends a transaction started by beginWriteTransaction(). When the
+	 * outermost one has been committed, the changes made in it are reported.
+	 * If it has been rolled back, they are dropped, the cache is reloaded and
+	 * RELOAD is reported instead.
+	 *
+	 * @param successful
+	 *            Whether the transaction has been marked successful
+	 */
+	private void endWriteTransaction(SQLiteDatabase db, boolean successful) {
+		boolean committed = false;
+		try {
+			db.endTransaction();
+			committed = successful;
+		} finally {
+			if (!committed)
+				mTransactionFailed = true;
+			if (--mTransactionDepth == 0) {
+				ArrayList<long[]> changes = new ArrayList<long[]>(mTransactionChanges);
+				mTransactionChanges.clear();
+				if (mTransactionFailed) {
+					// the cache may contain changes which have been rolled back
+					invalidateCache();
+					notifyChange(GoalChangeListener.RELOAD, -1, -1);
+				} else
+					postChanges(changes);
+			}
+		}
+	}
+
+	/**
+	 * @return The database, which is opened and upgraded if this is the first
+	 *         access.
+	 */
+	private SQLiteDatabase getDb() throws SQLiteException {
+		SQLiteDatabase d = db;
+		if (d != null)
+			return d;
+		// the class monitor is never held during database I/O, so a thread
+		// inside a transaction never waits for a thread waiting for the database
+		synchronized (this) {
+			if (mClosed)
+				throw new IllegalStateException("GoalProvider has already been released");
+			if (db == null) {
+				d = dbHelper.getWritableDatabase();
+				statements = new StatementPool(d);
+				db = d;
+			}
+			return db;
+		}
+	}
+
+	private StatementPool getStatements() {
+		StatementPool s = statements;
+		if (s != null)
+			return s;
+		getDb();
+		return statements;
+	}
+
+	/**
+	 * @return The goal tree cache, which is loaded from the database if
+	 *         necessary.
+	 */
+	private GoalTreeCache getCache() {
+		GoalTreeCache cache = sCache;
+		if (cache != null)
+			return cache;
+		int generation;
+		synchronized (GoalProvider.class) {
+			generation = sCacheGeneration;
+		}
+		// load without holding a lock, the query may have to wait for a
+		// transaction of the writer thread
+		cache = loadCache();
+		synchronized (GoalProvider.class) {
+			// another thread may have been faster, or the data has changed
+			// in the meantime, in which case the cache is only used once
+			if (sCache != null)
+				return sCache;
+			if (sCacheGeneration == generation)
+				sCache = cache;
+			return cache;
+		}
+	}
+
+	private GoalTreeCache loadCache() {
+		// only what is needed for the summaries and the aggregates
+		Cursor c = getDb().rawQuery("SELECT " + SUMMARY_COLUMNS + ", completionSum, weightSum" +
+				" FROM " + GOALS_TABLE_NAME + " ORDER BY id", null);
+		final int count = c.getCount();
+		ArrayList<GoalSummary> summaries = new ArrayList<GoalSummary>(count);
+		int[] completionSums = new int[count];
+		int[] weightSums = new int[count];
+		for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) {
+			completionSums[summaries.size()] = c.getInt(7);
+			weightSums[summaries.size()] = c.getInt(8);
+			summaries.add(getSummaryFromCursor(c));
+		}
+		c.close();
+		return new GoalTreeCache(summaries, completionSums, weightSums);
+	}
+
+	/**
+	 * Reads a summary from the current row of a cursor over
+	 * {@link #SUMMARY_COLUMNS}.
+	 */
+	private static GoalSummary getSummaryFromCursor(Cursor c) {
+		return new GoalSummary(c.getLong(0), c.isNull(1) ? -1 : c.getLong(1), c.getString(2),
+				c.getString(3), c.getInt(4), c.getInt(5), c.getInt(6));
+	}
+
+	/**
+	 * Drops the goal tree cache, it will be reloaded on next access.
+	 */
+	private static void invalidateCache() {
+		synchronized (GoalProvider.class) {
+			sCache = null;
+			sCacheGeneration++;
+		}
+	}
+
+	/**
+	 * Counts the top level goals in the database. Unlike the other summary
+	 * getters this does not need the goal tree cache, so the main screen can
+	 * start without loading the whole tree.
+	 */
 	public int getNumTopLevelGoals() {
-		Cursor c = db.query(GOALS_TABLE_NAME, new String[]{ "COUNT(id)" }, "parent is NULL", null, null, null, null);
-		c.moveToFirst();
-		int count = c.getInt(0);
+		Cursor c = getDb().rawQuery(SQL_COUNT_TOP_LEVEL_GOALS, null);
+		int count = c.moveToFirst() ? c.getInt(0) : 0;
 		c.close();
 		return count;
 	}
 
-	public Goal getTopLevelGoal(int position) {
-		Cursor results = db.query(GOALS_TABLE_NAME, null, "parent is NULL", null, null, null, null);
-		results.moveToPosition(position);
-		Goal g = getGoalFromCursor(results);
-		results.close();
-		return g;
+	/**
+	 * Reads a page of top level goals from the database, ordered by id.
+	 *
+	 * @param afterId
+	 *            Only goals with a greater id are returned, i.e. the id of the
+	 *            last goal of the previous page or -1 for the first page
+	 * @param limit
+	 *            Maximum number of goals to return
+	 */
+	public ArrayList<GoalSummary> getTopLevelGoalSummariesAfter(long afterId, int limit) {
+		return getSummaries(SQL_TOP_LEVEL_PAGE_AFTER, Long.toString(afterId), Integer
+				.toString(limit));
 	}
 
-	public ArrayList<Goal> getTopLevelGoals() {
-		ArrayList<Goal> results = new ArrayList<Goal>();
-		Cursor c = db.query(GOALS_TABLE_NAME, null, "parent is NULL", null, null, null, null);
-		for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) {
-			results.add(getGoalFromCursor(c));
-		}
+	/**
+	 * Reads a page of top level goals from the database, ordered by id. Slower
+	 * than {@link #getTopLevelGoalSummariesAfter(long, int)} for large
+	 * offsets, use it only if the id before the page is not known.
+	 *
+	 * @param offset
+	 *            Position of the first goal to return
+	 * @param limit
+	 *            Maximum number of goals to return
+	 */
+	public ArrayList<GoalSummary> getTopLevelGoalSummariesAt(int offset, int limit) {
+		return getSummaries(SQL_TOP_LEVEL_PAGE_AT, Integer.toString(limit), Integer
+				.toString(offset));
+	}
+
+	private ArrayList<GoalSummary> getSummaries(String sql, String... args) {
+		Cursor c = getDb().rawQuery(sql, args);
+		ArrayList<GoalSummary> results = new ArrayList<GoalSummary>(c.getCount());
+		for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext())
+			results.add(getSummaryFromCursor(c));
 		c.close();
 		return results;
 	}
 
+	public ArrayList<GoalSummary> getTopLevelGoalSummaries() {
+		return getCache().getTopLevelGoals();
+	}
+
 	public ArrayList<Goal> getAllGoals() {
 		ArrayList<Goal> results = new ArrayList<Goal>();
-		Cursor c = db.query(GOALS_TABLE_NAME, null, null, null, null, null, null);
+		Cursor c = getDb().query(GOALS_TABLE_NAME, null, null, null, null, null, null);
 		for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) {
 			results.add(getGoalFromCursor(c));
 		}
@@ -121,40 +738,47 @@ public class GoalProvider
 		return results;
 	}
 
+	/**
+	 * Reads all goals into a column oriented snapshot with one query. Cheaper
+	 * than {@link #getAllGoals()} when walking the whole tree.
+	 */
+	public GoalTable getGoalTable() {
+		Cursor c = getDb().rawQuery(SQL_GOAL_TABLE, null);
+		GoalTable table = new GoalTable(c);
+		c.close();
+		return table;
+	}
+
+	/**
+	 * Reads all attributes of a goal from the database. Use
+	 * {@link #getGoalSummary(long)} if the summary is enough.
+	 *
+	 * @return The goal or null if there is no goal with this id
+	 */
 	public Goal getGoalWithId(long id) {
-		Cursor c = db.query(GOALS_TABLE_NAME, null, "id=" + Long.toString(id),
-				null, null, null, null);
-		if (!c.moveToFirst()) {
-			c.close();
-			return null;
-		}
-		Goal result = getGoalFromCursor(c);
+		Cursor c = getDb().rawQuery(SQL_GOAL_WITH_ID, new String[] { Long.toString(id) });
+		Goal g = c.moveToFirst() ? getGoalFromCursor(c) : null;
 		c.close();
-		return result;
+		return g;
+	}
+
+	/**
+	 * @return The summary of the goal or null if there is no goal with this id
+	 */
+	public GoalSummary getGoalSummary(long id) {
+		return getCache().getGoal(id);
 	}
 
 	public boolean hasChildren(long parentId) {
-		Cursor c = db.query(GOALS_TABLE_NAME, new String[]{ "COUNT(id)" }, "parent=" + Long.toString(parentId),
-				null, null, null, null);
-		c.moveToFirst();
-		int count = c.getInt(0);
-		c.close();
-		return count > 0;
+		return getCache().hasChildren(parentId);
 	}
 
 	/**
 	 * @param parentId id of the parent goal
-	 * @return possibly empty vector of child goals
+	 * @return possibly empty vector of the summaries of the child goals
 	 */
-	public ArrayList<Goal> getChildGoals(long parentId) {
-		Cursor c = db.query(GOALS_TABLE_NAME, null, "parent=" + Long.toString(parentId),
-				null, null, null, null);
-		ArrayList<Goal> results = new ArrayList<Goal>();
-		for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) {
-			results.add(getGoalFromCursor(c));
-		}
-		c.close();
-		return results;
+	public ArrayList<GoalSummary> getChildGoalSummaries(long parentId) {
+		return getCache().getChildGoals(parentId);
 	}
 
 	/**
@@ -163,203 +787,669 @@ public class GoalProvider
 	 * @return ID of the new Goal
 	 */
 	public long insertGoal(Goal g, long parent) {
-		ContentValues values = extractValues(g);
+		mWriteLock.lock();
+		try {
+			long newId = insertGoalLocked(g, parent);
+			if (mInBulkInsert && ++mBulkInsertBatchSize == BULK_INSERT_BATCH_SIZE)
+				commitBulkInsertBatch();
+			return newId;
+		} finally {
+			mWriteLock.unlock();
+		}
+	}
+
+	private long insertGoalLocked(Goal g, long parent) {
+		SQLiteDatabase db = beginWriteTransaction();
+		boolean successful = false;
+		try {
+			long newId = insertGoalInTransaction(g, parent);
+			db.setTransactionSuccessful();
+			successful = true;
+			return newId;
+		} finally {
+			endWriteTransaction(db, successful);
+		}
+	}
+
+	private long insertGoalInTransaction(Goal g, long parent) {
+		// load a cold cache before the new goal is written, so it is added
+		// to the cache exactly once below
+		GoalTreeCache cache = mInBulkInsert ? null : getCache();
+		SQLiteStatement insert = getStatements().get(SQL_INSERT_GOAL);
 		if (parent != -1)
-			values.put("parent", parent);
-		long newId = db.insert(GOALS_TABLE_NAME, null, values);
-		updateParentCompletion(newId);
+			insert.bindLong(1, parent);
+		else
+			insert.bindNull(1);
+		bindGoal(insert, 2, g, true);
+		long newId = insert.executeInsert();
+		if (newId == -1)
+			return newId;
+		SQLiteStatement self = getStatements().get(SQL_INSERT_SELF_ANCESTOR);
+		self.bindLong(1, newId);
+		self.bindLong(2, newId);
+		self.execute();
+		if (parent != -1) {
+			SQLiteStatement ancestors = getStatements().get(SQL_INSERT_ANCESTORS);
+			ancestors.bindLong(1, newId);
+			ancestors.bindLong(2, parent);
+			ancestors.execute();
+			adjustChildCount(parent, 1);
+		}
+		if (!mInBulkInsert) {
+			cache.insert(newId, g, parent);
+			notifyChange(GoalChangeListener.INSERTED, newId, parent);
+			updateAncestorAggregates(parent, g.getCompletion() * g.getCompletionWeight(),
+					g.getCompletionWeight());
+		} else {
+			if (mBulkInsertFirstId == -1)
+				mBulkInsertFirstId = newId;
+			// ids are increasing, so a parent older than the first new goal
+			// has not been inserted in this bulk
+			if (parent != -1 && parent < mBulkInsertFirstId)
+				mBulkInsertParents.add(parent);
+		}
 		return newId;
 	}
 
+	/**
+	 * Starts inserting many goals at once. All following calls of insertGoal
+	 * skip updating the goal tree cache and the completion of their
+	 * ancestors. The completions are calculated once for all new goals in
+	 * endBulkInsert() and the cache is reloaded on next access.
+	 *
+	 * The goals are committed in batches of {@value #BULK_INSERT_BATCH_SIZE},
+	 * so the size of the transaction does not grow with the number of goals.
+	 * Other threads may see the goals of committed batches, but cannot write
+	 * until the bulk insert has ended. If it fails, all new goals are deleted
+	 * again. Use it like a database transaction:
+	 *
+	 * <pre>
+	 * gp.beginBulkInsert();
+	 * try {
+	 *     gp.insertGoal(...);
+	 *     ...
+	 *     gp.setBulkInsertSuccessful();
+	 * } finally {
+	 *     gp.endBulkInsert();
+	 * }
+	 * </pre>
+	 */
+	public void beginBulkInsert() {
+		mWriteLock.lock();
+		if (mInBulkInsert) {
+			mWriteLock.unlock();
+			throw new IllegalStateException("Bulk insert already in progress");
+		}
+		getDb().beginTransaction();
+		mInBulkInsert = true;
+		mBulkInsertSuccessful = false;
+		mBulkInsertFirstId = -1;
+		mBulkInsertBatchSize = 0;
+		mBulkInsertCommitted = false;
+		mBulkInsertParents.clear();
+	}
+
+	private void commitBulkInsertBatch() {
+		SQLiteDatabase db = getDb();
+		db.setTransactionSuccessful();
+		db.endTransaction();
+		mBulkInsertCommitted = true;
+		mBulkInsertBatchSize = 0;
+		db.beginTransaction();
+	}
+
+	/**
+	 * Marks the current bulk insert as successful, so endBulkInsert() will
+	 * commit it.
+	 */
+	public void setBulkInsertSuccessful() {
+		if (!mInBulkInsert || !mWriteLock.isHeldByCurrentThread())
+			throw new IllegalStateException("No bulk insert in progress");
+		mBulkInsertSuccessful = true;
+	}
+
+	/**
+	 * Ends the current bulk insert. If it has been marked successful, the
+	 * completion of all inserted subtrees and their ancestors is calculated
+	 * bottom-up and everything is committed. Otherwise all new goals are
+	 * removed again.
+	 */
+	public void endBulkInsert() {
+		if (!mInBulkInsert || !mWriteLock.isHeldByCurrentThread())
+			throw new IllegalStateException("No bulk insert in progress");
+		mInBulkInsert = false;
+		try {
+			SQLiteDatabase db = getDb();
+			try {
+				if (mBulkInsertSuccessful && mBulkInsertFirstId != -1)
+					updateBulkInsertAggregates(db);
+				if (mBulkInsertSuccessful)
+					db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+			if (!mBulkInsertSuccessful && mBulkInsertCommitted)
+				deleteBulkInsert(db);
+		} finally {
+			mBulkInsertParents.clear();
+			invalidateCache();
+			try {
+				if (mBulkInsertSuccessful || mBulkInsertCommitted)
+					notifyChange(GoalChangeListener.RELOAD, -1, -1);
+			} finally {
+				mWriteLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Recalculates the completion aggregates of all goals which have new
+	 * descendants, one level of the tree after the other from the deepest
+	 * one up.
+	 */
+	private void updateBulkInsertAggregates(SQLiteDatabase db) {
+		SQLiteStatement maxDepth = db.compileStatement(SQL_MAX_DEPTH_FROM);
+		maxDepth.bindLong(1, mBulkInsertFirstId);
+		long depth = maxDepth.simpleQueryForLong();
+		maxDepth.close();
+		SQLiteStatement level = db.compileStatement(SQL_UPDATE_LEVEL_AGGREGATES);
+		for (; depth >= 0; depth--) {
+			level.bindLong(1, mBulkInsertFirstId);
+			level.bindLong(2, depth);
+			level.execute();
+		}
+		level.close();
+	}
+
+	/**
+	 * Deletes all goals of a failed bulk insert which have already been
+	 * committed.
+	 */
+	private void deleteBulkInsert(SQLiteDatabase db) {
+		String[] firstId = new String[] { Long.toString(mBulkInsertFirstId) };
+		db.beginTransaction();
+		try {
+			db.execSQL("DELETE FROM " + ANCESTORS_TABLE_NAME + " WHERE descendant >= ?",
+					firstId);
+			db.execSQL("DELETE FROM " + GOALS_TABLE_NAME + " WHERE id >= ?", firstId);
+			SQLiteStatement recount = db.compileStatement(SQL_RECOUNT_CHILDREN);
+			for (long parent : mBulkInsertParents) {
+				recount.bindLong(1, parent);
+				recount.execute();
+			}
+			recount.close();
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * Writes all attributes of a goal and passes a changed completion or
+	 * weight on to its ancestors, all in one transaction.
+	 *
+	 * @return False if there is no goal with this id
+	 */
 	public boolean updateGoal(long id, Goal g) {
+		mWriteLock.lock();
+		try {
+			SQLiteDatabase db = beginWriteTransaction();
+			boolean successful = false;
+			try {
+				boolean updated = updateGoalLocked(id, g);
+				db.setTransactionSuccessful();
+				successful = true;
+				return updated;
+			} finally {
+				endWriteTransaction(db, successful);
+			}
+		} finally {
+			mWriteLock.unlock();
+		}
+	}
+
+	private boolean updateGoalLocked(long id, Goal g) {
+		GoalSummary old = getCache().getGoal(id);
+		if (old == null)
+			return false;
 		boolean hasChildren = hasChildren(id);
-		final int affectedRows =
-			db.update(GOALS_TABLE_NAME, extractValues(g, !hasChildren), "id=" + Long.toString(id), null);
-		return (affectedRows == 1 && updateParentCompletion(id));
+		SQLiteStatement update = getStatements().get(hasChildren ? SQL_UPDATE_GOAL
+				: SQL_UPDATE_GOAL_WITH_COMPLETION);
+		int index = bindGoal(update, 1, g, !hasChildren);
+		update.bindLong(index, id);
+		update.execute();
+		getCache().update(id, g, !hasChildren);
+		notifyChange(GoalChangeListener.UPDATED, id, getParentId(id));
+		// the completion of non-leaves is calculated, so only take it for leaves
+		int newCompletion = hasChildren ? old.getCompletion() : g.getCompletion();
+		updateAncestorAggregates(getParentId(id),
+				newCompletion * g.getCompletionWeight() - old.getCompletion() * old.getCompletionWeight(),
+				g.getCompletionWeight() - old.getCompletionWeight());
+		return true;
 	}
 
 	public boolean deleteGoal(long id) {
-		return deleteGoal(id, null);
+		mWriteLock.lock();
+		try {
+			return deleteGoalLocked(id);
+		} finally {
+			mWriteLock.unlock();
+		}
 	}
 
-	private boolean deleteGoal(long id, String imageName) {
-		if (hasChildren(id)) {
-			Cursor c = db.query(GOALS_TABLE_NAME, new String[] { "id", "imageName"}, "parent=" + Long.toString(id),
-					null, null, null, null);
-			c.moveToFirst();
-			while (!c.isAfterLast()) {
-				deleteGoal(c.getLong(0), c.getString(1));
-				c.moveToNext();
-			}
-			c.close();
+	/**
+	 * Deletes a goal together with all its descendants in one transaction.
+	 * Their images are deleted in the background afterwards.
+	 */
+	private boolean deleteGoalLocked(long id) {
+		GoalSummary g = getCache().getGoal(id);
+		if (g == null)
+			return false;
+		long parentId = getParentId(id);
+		ArrayList<String> imageNames = getCache().getSubtreeImageNames(id);
+		SQLiteDatabase db = beginWriteTransaction();
+		boolean successful = false;
+		try {
+			SQLiteStatement delete = getStatements().get(SQL_DELETE_SUBTREE);
+			delete.bindLong(1, id);
+			delete.execute();
+			delete = getStatements().get(SQL_DELETE_SUBTREE_ANCESTORS);
+			delete.bindLong(1, id);
+			delete.execute();
+			if (parentId != -1)
+				adjustChildCount(parentId, -1);
+			getCache().remove(id);
+			notifyChange(GoalChangeListener.DELETED, id, parentId);
+			// the parent has lost this goal's share of its completion
+			updateAncestorAggregates(parentId, -g.getCompletion() * g.getCompletionWeight(),
+					-g.getCompletionWeight());
+			db.setTransactionSuccessful();
+			successful = true;
+		} finally {
+			endWriteTransaction(db, successful);
 		}
-		return deleteGoalNonRecursive(id, imageName);
+		deleteImages(imageNames);
+		return true;
 	}
 
-	private boolean deleteGoalNonRecursive(long id, String imageName) {
-		if (imageName == null)
-			imageName = getImageName(id);
-		deleteImage(imageName);
-		final int affectedRows =
-			db.delete(GOALS_TABLE_NAME, "id=" + id, null);
-		return affectedRows == 1;
+	/**
+	 * Changes the stored number of children of a goal. The cache keeps track
+	 * of the number of children by itself.
+	 */
+	private void adjustChildCount(long goalId, int delta) {
+		SQLiteStatement update = getStatements().get(SQL_ADJUST_CHILD_COUNT);
+		update.bindLong(1, delta);
+		update.bindLong(2, goalId);
+		update.execute();
 	}
 
-	private void deleteImage(String imageName) {
-		if (imageName == null)
+	/**
+	 * Deletes image files on a background thread.
+	 */
+	private void deleteImages(final ArrayList<String> imageNames) {
+		if (imageNames.isEmpty())
 			return;
-		File imageFile = context.getFileStreamPath(imageName);
-		if (imageFile.exists())
-			imageFile.delete();
+		sImageCleaner.execute(new Runnable() {
+			public void run() {
+				BitmapCache thumbnails = BitmapCache.getInstance(context);
+				for (String imageName : imageNames) {
+					thumbnails.invalidate(imageName);
+					File imageFile = context.getFileStreamPath(imageName);
+					if (imageFile.exists())
+						imageFile.delete();
+				}
+			}
+		});
 	}
 
 	/**
-	 * Updates the completion of a non-leaf with the completion of all children
+	 * Recalculates the completion aggregates of a non-leaf from all its
+	 * children and passes the resulting change on to its ancestors.
 	 * @param goalId the id of the goal to update
 	 * @return True if successful, false otherwise, in particular if the goal is a leaf.
 	 */
 	public boolean updateGoalCompletion(long goalId) {
-		Cursor c = db.query(GOALS_TABLE_NAME, new String[]{ "completion", "completionWeight" },
-				"parent=" + Long.toString(goalId), null, null, null, null);
-		c.moveToFirst();
-		if (c.isAfterLast()) {
-			c.close();
-			return false;
+		mWriteLock.lock();
+		try {
+			SQLiteDatabase db = beginWriteTransaction();
+			boolean successful = false;
+			try {
+				boolean updated = updateGoalCompletionLocked(goalId);
+				db.setTransactionSuccessful();
+				successful = true;
+				return updated;
+			} finally {
+				endWriteTransaction(db, successful);
+			}
+		} finally {
+			mWriteLock.unlock();
 		}
-		// calculate completion
-		int newCompletion = 0;
-		int weight = 0;
-		while (!c.isAfterLast()) {
-			weight += c.getInt(1);
-			newCompletion += (c.getInt(0) * c.getInt(1));
-			c.moveToNext();
+	}
+
+	private boolean updateGoalCompletionLocked(long goalId) {
+		ArrayList<GoalSummary> children = getCache().getChildGoals(goalId);
+		if (children.isEmpty())
+			return false;
+		int completionSum = 0;
+		int weightSum = 0;
+		for (GoalSummary child : children) {
+			weightSum += child.getCompletionWeight();
+			completionSum += child.getCompletion() * child.getCompletionWeight();
 		}
-		c.close();
-		// normalize the degree of completion
-		newCompletion = newCompletion / weight;
-		// update entry
-		if (!updateGoalCompletionNonRecursive(goalId, newCompletion))
+		GoalSummary old = getCache().getGoal(goalId);
+		int newCompletion = completionSum / weightSum;
+		if (!updateAggregates(goalId, newCompletion, completionSum, weightSum))
 			return false;
-		return updateParentCompletion(goalId);
+		if (newCompletion != old.getCompletion())
+			notifyChange(GoalChangeListener.COMPLETION_CHANGED, goalId, getParentId(goalId));
+		updateAncestorAggregates(getParentId(goalId),
+				(newCompletion - old.getCompletion()) * old.getCompletionWeight(), 0);
+		return true;
 	}
 
 	public boolean updateGoalCompletion(long goalId, int newCompletion) {
+		mWriteLock.lock();
+		try {
+			SQLiteDatabase db = beginWriteTransaction();
+			boolean successful = false;
+			try {
+				boolean updated = updateGoalCompletionLocked(goalId, newCompletion);
+				db.setTransactionSuccessful();
+				successful = true;
+				return updated;
+			} finally {
+				endWriteTransaction(db, successful);
+			}
+		} finally {
+			mWriteLock.unlock();
+		}
+	}
+
+	private boolean updateGoalCompletionLocked(long goalId, int newCompletion) {
 		if (hasChildren(goalId))
 			return false;
-		ContentValues values = new ContentValues();
-		values.put("completion", newCompletion);
-		final int affectedRows =
-			db.update(GOALS_TABLE_NAME, values, "id=" + Long.toString(goalId), null);
-		if (affectedRows == 1)
-			return updateParentCompletion(goalId);
-		return false;
-	}
-
-	private boolean updateParentCompletion(long goalId) {
-		long parentId = getParentId(goalId);
-		if (parentId != -1)
-			return updateGoalCompletion(parentId);
+		GoalSummary old = getCache().getGoal(goalId);
+		if (old == null)
+			return false;
+		SQLiteStatement update = getStatements().get(SQL_UPDATE_COMPLETION);
+		update.bindLong(1, newCompletion);
+		update.bindLong(2, goalId);
+		update.execute();
+		getCache().updateCompletion(goalId, newCompletion);
+		notifyChange(GoalChangeListener.COMPLETION_CHANGED, goalId, getParentId(goalId));
+		updateAncestorAggregates(getParentId(goalId),
+				(newCompletion - old.getCompletion()) * old.getCompletionWeight(), 0);
 		return true;
 	}
 
-	private boolean updateGoalCompletionNonRecursive(long goalId, int newCompletion) {
-		ContentValues values = new ContentValues();
-		values.put("completion", newCompletion);
-		final int affectedRows =
-			db.update(GOALS_TABLE_NAME, values, "id=" + Long.toString(goalId), null);
-		return affectedRows == 1;
+	/**
+	 * Sets the completion of several leaves at once in a single transaction.
+	 * Every affected ancestor is recalculated only once, after all changes
+	 * below it. Goals which are unknown or have children are skipped.
+	 *
+	 * @param completions New completion per goal id
+	 * @return The number of goals whose completion has been set
+	 */
+	public int updateGoalCompletions(Map<Long, Integer> completions) {
+		mWriteLock.lock();
+		try {
+			SQLiteDatabase db = beginWriteTransaction();
+			boolean successful = false;
+			try {
+				int updated = updateGoalCompletionsLocked(completions);
+				db.setTransactionSuccessful();
+				successful = true;
+				return updated;
+			} finally {
+				endWriteTransaction(db, successful);
+			}
+		} finally {
+			mWriteLock.unlock();
+		}
+	}
+
+	private int updateGoalCompletionsLocked(Map<Long, Integer> completions) {
+		HashMap<Long, int[]> parentDeltas = new HashMap<Long, int[]>();
+		int updated = 0;
+		for (Map.Entry<Long, Integer> e : completions.entrySet()) {
+			final long goalId = e.getKey();
+			final int newCompletion = e.getValue();
+			GoalSummary old = getCache().getGoal(goalId);
+			if (old == null || hasChildren(goalId))
+				continue;
+			SQLiteStatement update = getStatements().get(SQL_UPDATE_COMPLETION);
+			update.bindLong(1, newCompletion);
+			update.bindLong(2, goalId);
+			update.execute();
+			getCache().updateCompletion(goalId, newCompletion);
+			notifyChange(GoalChangeListener.COMPLETION_CHANGED, goalId, getParentId(goalId));
+			addDelta(parentDeltas, getParentId(goalId),
+					(newCompletion - old.getCompletion()) * old.getCompletionWeight(), 0);
+			updated++;
+		}
+		updateAncestorAggregates(parentDeltas);
+		return updated;
 	}
 
 	/**
-	 * @param goalId ID of the goal, whose parent we are interested in.
-	 * @return The ID of the parent or -1 if goalId belongs to TLG.
+	 * Adds a change of a child's share in the completion of its parent to the
+	 * changes collected per parent.
 	 */
-	public long getParentId(long goalId) {
-		Cursor c = db.query(GOALS_TABLE_NAME, new String[] { "parent" }, "id=" + Long.toString(goalId),
-				null, null, null, null);
-		c.moveToFirst();
-		if (c.isAfterLast() || c.isNull(0)) {
-			c.close();
-			return -1;
+	private static void addDelta(HashMap<Long, int[]> parentDeltas, long parentId,
+			int completionSumDelta, int weightSumDelta) {
+		int[] delta = parentDeltas.get(parentId);
+		if (delta == null)
+			parentDeltas.put(parentId, delta = new int[2]);
+		delta[0] += completionSumDelta;
+		delta[1] += weightSumDelta;
+	}
+
+	/**
+	 * Applies the change of a child's share in the completion of its parent.
+	 * Every parent stores the sum of completion * completionWeight and the
+	 * sum of completionWeight of its children, so it only needs to adjust
+	 * these by the given deltas instead of looking at all children. The
+	 * resulting change of its own completion is passed on to its parent.
+	 *
+	 * @param parentId Parent whose child has changed, -1 for none
+	 * @param completionSumDelta Change of the child's completion * completionWeight
+	 * @param weightSumDelta Change of the child's completionWeight
+	 */
+	private void updateAncestorAggregates(long parentId, int completionSumDelta, int weightSumDelta) {
+		while (parentId != -1 && (completionSumDelta != 0 || weightSumDelta != 0)) {
+			completionSumDelta = applyAggregatesDelta(parentId, completionSumDelta, weightSumDelta);
+			weightSumDelta = 0;
+			parentId = getCache().getParentId(parentId);
 		}
-		long result = c.getLong(0);
-		c.close();
-		return result;
 	}
 
-	private String getImageName(long goalId) {
-		Cursor c = db.query(GOALS_TABLE_NAME, new String[] { "imageName" },
-				"id=" + Long.toString(goalId), null, null, null, null);
-		c.moveToFirst();
-		if (c.isAfterLast() || c.isNull(0)) {
-			c.close();
-			return null;
+	/**
+	 * Like {@link #updateAncestorAggregates(long, int, int)}, but for changes
+	 * below several parents at once. Parents are updated deepest first, so
+	 * ancestors shared by several of them are only updated once.
+	 *
+	 * @param parentDeltas Changes of completion * completionWeight and of
+	 *        completionWeight per parent, see {@link #addDelta}
+	 */
+	private void updateAncestorAggregates(HashMap<Long, int[]> parentDeltas) {
+		GoalTreeCache cache = getCache();
+		// changes to apply per depth of the parent
+		ArrayList<HashMap<Long, int[]>> levels = new ArrayList<HashMap<Long, int[]>>();
+		for (Map.Entry<Long, int[]> e : parentDeltas.entrySet()) {
+			if (e.getKey() == -1)
+				continue;
+			int depth = cache.getDepth(e.getKey());
+			while (levels.size() <= depth)
+				levels.add(new HashMap<Long, int[]>());
+			addDelta(levels.get(depth), e.getKey(), e.getValue()[0], e.getValue()[1]);
+		}
+		for (int depth = levels.size() - 1; depth >= 0; depth--) {
+			for (Map.Entry<Long, int[]> e : levels.get(depth).entrySet()) {
+				int delta = applyAggregatesDelta(e.getKey(), e.getValue()[0], e.getValue()[1]);
+				long grandParentId = cache.getParentId(e.getKey());
+				if (delta != 0 && grandParentId != -1)
+					addDelta(levels.get(depth - 1), grandParentId, delta, 0);
+			}
 		}
-		String result = c.getString(0);
-		c.close();
-		return result;
 	}
 
-	private ContentValues extractValues(Goal g) {
-		return extractValues(g, true);
+	/**
+	 * Adjusts the completion aggregates of a single goal by the change of one
+	 * or more of its children and recalculates its completion.
+	 *
+	 * @return The resulting change of the goal's completion * completionWeight,
+	 *         to be applied to its parent
+	 */
+	private int applyAggregatesDelta(long goalId, int completionSumDelta, int weightSumDelta) {
+		GoalTreeCache cache = getCache();
+		GoalSummary goal = cache.getGoal(goalId);
+		if (goal == null)
+			return 0;
+		int completionSum = cache.getCompletionSum(goalId) + completionSumDelta;
+		int weightSum = cache.getWeightSum(goalId) + weightSumDelta;
+		// a goal which has lost its last child keeps its completion
+		int newCompletion = weightSum > 0 ? completionSum / weightSum : goal.getCompletion();
+		if (!updateAggregates(goalId, newCompletion, completionSum, weightSum))
+			return 0;
+		if (newCompletion == goal.getCompletion())
+			return 0;
+		notifyChange(GoalChangeListener.COMPLETION_CHANGED, goalId, cache.getParentId(goalId));
+		return (newCompletion - goal.getCompletion()) * goal.getCompletionWeight();
 	}
 
-	private ContentValues extractValues(Goal g, boolean withCompletion) {
-		ContentValues values = new ContentValues();
-		values.put("name", g.getName());
-		values.put("description", g.getDescription().length() > 0 ? g.getDescription() : null);
-		values.put("imageName", g.getImageName().length() > 0 ? g.getImageName() : null);
+	private boolean updateAggregates(long goalId, int completion, int completionSum, int weightSum) {
+		if (!getCache().contains(goalId))
+			return false;
+		SQLiteStatement update = getStatements().get(SQL_UPDATE_AGGREGATES);
+		update.bindLong(1, completion);
+		update.bindLong(2, completionSum);
+		update.bindLong(3, weightSum);
+		update.bindLong(4, goalId);
+		update.execute();
+		getCache().updateAggregates(goalId, completion, completionSum, weightSum);
+		return true;
+	}
+
+	/**
+	 * Moves the goals stored by versions before the current schema over to
+	 * the current table. Takes long for many goals, so it must not be called
+	 * on the UI thread: {@link AsyncGoalProvider#migrate(GoalProviderCallback)}
+	 * does it on the writer thread before all reads submitted afterwards.
+	 * Until then only the goals migrated so far are visible.
+	 *
+	 * @return Whether there was anything to migrate
+	 */
+	public boolean migrate() {
+		mWriteLock.lock();
+		try {
+			if (!migrateLegacyGoals(getDb()))
+				return false;
+			invalidateCache();
+			notifyChange(GoalChangeListener.RELOAD, -1, -1);
+			return true;
+		} finally {
+			mWriteLock.unlock();
+		}
+	}
+
+	/**
+	 * @param goalId ID of the goal, whose parent we are interested in.
+	 * @return The ID of the parent or -1 if goalId belongs to TLG.
+	 */
+	public long getParentId(long goalId) {
+		return getCache().getParentId(goalId);
+	}
+
+	/**
+	 * Binds the attributes of a goal to consecutive parameters of a statement
+	 * in the order name, description, imageName, completionWeight, deadline,
+	 * timestamp and optionally completion.
+	 *
+	 * @param index Index of the first parameter to bind
+	 * @return Index of the next parameter after the goal's attributes
+	 */
+	private static int bindGoal(SQLiteStatement statement, int index, Goal g, boolean withCompletion) {
+		statement.bindString(index++, g.getName());
+		bindOptionalString(statement, index++, g.getDescription());
+		bindOptionalString(statement, index++, g.getImageName());
+		statement.bindLong(index++, g.getCompletionWeight());
+		statement.bindLong(index++, g.getDeadlineDay());
+		statement.bindLong(index++, g.getTimestampDay());
 		if (withCompletion)
-			values.put("completion", g.getCompletion());
-		values.put("completionWeight", g.getCompletionWeight());
-		values.put("deadline", SDF.format(g.getDeadline().getTime()));
-		values.put("timestamp", SDF.format(g.getTimestamp().getTime()));
-		return values;
+			statement.bindLong(index++, g.getCompletion());
+		return index;
+	}
+
+	/**
+	 * Binds a string parameter, using NULL for empty strings.
+	 */
+	private static void bindOptionalString(SQLiteStatement statement, int index, String value) {
+		if (value.length() > 0)
+			statement.bindString(index, value);
+		else
+			statement.bindNull(index);
 	}
 
 	private Goal getGoalFromCursor(Cursor c) {
 		String description = c.isNull(3) ? "" : c.getString(3);
-		GregorianCalendar deadline = new GregorianCalendar();
-		try
-		{
-			deadline.setTime(SDF.parse(c.getString(7)));
-		}
-		catch (ParseException e)
-		{
-			if (DEBUG)
-				Log.w(TAG, "No deadline found or wrong format.");
-		}
-		Goal g = new Goal(c.getString(2), description, deadline);
+		// no calendars are created unless the caller asks for them
+		Goal g = new Goal(c.getString(2), description, c.getInt(7), c.getInt(8));
 		g.setId(c.getLong(0));
 		g.setImageName(c.isNull(4) ? "" : c.getString(4));
 		g.setCompletion(c.getInt(5));
 		g.setCompletionWeight(c.getInt(6));
-		GregorianCalendar timestamp = new GregorianCalendar();
-		try
-		{
-			timestamp.setTime(SDF.parse(c.getString(8)));
-		}
-		catch (ParseException e)
-		{
-			if (DEBUG)
-				Log.w(TAG, "No timestamp found or wrong format.");
-		}
+		g.setChildCount(c.getInt(11));
 		return g;
 	}
 
-	public void close()
+	/**
+	 * @return How many times this provider has reused a compiled statement
+	 *         instead of compiling its SQL again.
+	 */
+	public int getPreparesAvoided() {
+		return getStatements().getPreparesAvoided();
+	}
+
+	private void close()
 	{
-		db.close();
+		synchronized (this) {
+			mClosed = true;
+			if (db == null)
+				return;
+			if (DEBUG)
+				Log.d(TAG, "Closing GoalProvider, " + statements.getPreparesAvoided() +
+						" prepares avoided");
+			statements.close();
+			statements = null;
+			db.close();
+			db = null;
+		}
 	}
 
 	//temporary for debug
 
 	public void wipe() throws SQLException {
-		db.execSQL("DROP TABLE " + GOALS_TABLE_NAME);
-		dbHelper.onCreate(db);
+		mWriteLock.lock();
+		try {
+			getDb().execSQL("DROP TABLE " + GOALS_TABLE_NAME);
+			getDb().execSQL("DROP TABLE " + ANCESTORS_TABLE_NAME);
+			dbHelper.onCreate(getDb());
+			invalidateCache();
+			notifyChange(GoalChangeListener.RELOAD, -1, -1);
+		} finally {
+			mWriteLock.unlock();
+		}
 	}
 
 	public void execSQL(String sql) throws SQLException{
-		db.execSQL(sql);
+		mWriteLock.lock();
+		try {
+			getDb().execSQL(sql);
+			// we cannot tell what has changed
+			invalidateCache();
+			notifyChange(GoalChangeListener.RELOAD, -1, -1);
+		} finally {
+			mWriteLock.unlock();
+		}
 	}
 }
\ No newline at end of file
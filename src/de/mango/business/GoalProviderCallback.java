@@ -0,0 +1,40 @@
+/*
+ *  Copyright (C) 2011 Sebastian Dörner
+ *
+ *  This file is part of Mango.
+ *
+ *  Mango is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Mango is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Mango.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package de.mango.business;
+
+/**
+ * Interface implementing an action to be taken when a request to the
+ * {@link AsyncGoalProvider} has completed.
+ *
+ * @param <T>
+ *            Type of the result
+ */
+public interface GoalProviderCallback<T>
+{
+	/**
+	 * Method to be called on the UI thread with the result of the request.
+	 *
+	 * @param result
+	 *            The result, as the corresponding method of the GoalProvider
+	 *            would have returned it.
+	 */
+	public void action(T result);
+}
@@ -0,0 +1,40 @@
+/*
+ *  Copyright (C) 2011 Sebastian Dörner
+ *
+ *  This file is part of Mango.
+ *
+ *  Mango is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Mango is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Mango.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package de.mango.business;
+
+/**
+ * Callback which is also told when a request to the {@link AsyncGoalProvider}
+ * has failed with an exception.
+ *
+ * @param <T>
+ *            Type of the result
+ */
+public interface GoalProviderErrorCallback<T> extends GoalProviderCallback<T>
+{
+	/**
+	 * Method to be called on the UI thread instead of
+	 * {@link #action(Object)} if the request has thrown an exception.
+	 *
+	 * @param cause
+	 *            The exception thrown by the GoalProvider
+	 */
+	public void error(Throwable cause);
+}
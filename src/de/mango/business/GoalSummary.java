@@ -0,0 +1,119 @@
+/*
+ *  Copyright (C) 2011 Sebastian Dörner
+ *
+ *  This file is part of Mango.
+ *
+ *  Mango is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Mango is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Mango.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package de.mango.business;
+
+/**
+ * The part of a goal needed to show it in a list or grid. Summaries are
+ * immutable, so they can be shared freely. Use
+ * {@link GoalProvider#getGoalWithId(long)} to get all attributes of a goal.
+ */
+public final class GoalSummary
+{
+	private final long id;
+	private final long parentId;
+	private final String name;
+	private final String imageName;
+	private final int completion;
+	private final int completionWeight;
+	private final int childCount;
+
+	GoalSummary(long id, long parentId, String name, String imageName, int completion,
+			int completionWeight, int childCount)
+	{
+		this.id = id;
+		this.parentId = parentId;
+		this.name = name != null ? name : "";
+		this.imageName = imageName != null ? imageName : "";
+		this.completion = completion;
+		this.completionWeight = completionWeight;
+		this.childCount = childCount;
+	}
+
+	/**
+	 * Creates the summary of a goal.
+	 *
+	 * @param parentId
+	 *            Id of the goal's parent, -1 for a top level goal
+	 */
+	GoalSummary(Goal g, long parentId)
+	{
+		this(g.getId(), parentId, g.getName(), g.getImageName(), g.getCompletion(), g
+				.getCompletionWeight(), g.getChildCount());
+	}
+
+	public long getId()
+	{
+		return id;
+	}
+
+	/**
+	 * @return The id of the parent or -1 for a top level goal
+	 */
+	public long getParentId()
+	{
+		return parentId;
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public String getImageName()
+	{
+		return imageName;
+	}
+
+	public int getCompletion()
+	{
+		return completion;
+	}
+
+	public int getCompletionWeight()
+	{
+		return completionWeight;
+	}
+
+	public int getChildCount()
+	{
+		return childCount;
+	}
+
+	/**
+	 * @see Goal#getCompletionColor()
+	 */
+	public int getCompletionColor()
+	{
+		return Goal.getCompletionColor(completion);
+	}
+
+	GoalSummary withCompletion(int newCompletion)
+	{
+		return new GoalSummary(id, parentId, name, imageName, newCompletion, completionWeight,
+				childCount);
+	}
+
+	GoalSummary withChildCount(int newChildCount)
+	{
+		return new GoalSummary(id, parentId, name, imageName, completion, completionWeight,
+				newChildCount);
+	}
+}
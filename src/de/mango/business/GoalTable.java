@@ -0,0 +1,227 @@
+/*
+ *  Copyright (C) 2011 Sebastian Dörner
+ *
+ *  This file is part of Mango.
+ *
+ *  Mango is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Mango is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Mango.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package de.mango.business;
+
+import android.database.Cursor;
+
+/**
+ * Immutable snapshot of all goals, stored column by column in parallel arrays.
+ * Goals are addressed by their row, which is the position in id order. Use
+ * {@link GoalProvider#getGoalTable()} to get one.
+ *
+ * The tree is stored as rows as well: the children of a row are
+ * getChild(row, 0) to getChild(row, getNumChildren(row) - 1), in id order, so
+ * the whole tree can be walked without creating any objects.
+ */
+public final class GoalTable
+{
+	// the columns, one entry per row
+	private final long[] mIds;
+	private final int[] mParentRows; // -1 for top level goals
+	private final String[] mNames;
+	private final String[] mDescriptions;
+	private final String[] mImageNames;
+	private final int[] mCompletions;
+	private final int[] mCompletionWeights;
+	private final int[] mDeadlineDays;
+	private final int[] mTimestampDays;
+	// children of row r are mChildRows[mChildOffsets[r]] up to
+	// mChildRows[mChildOffsets[r + 1] - 1], top level goals come after the
+	// children of the last row
+	private final int[] mChildOffsets;
+	private final int[] mChildRows;
+	private final LongIntHashMap mRowsById;
+
+	/**
+	 * Reads all rows of a cursor over id, parent, name, description,
+	 * imageName, completion, completionWeight, deadline and timestamp,
+	 * ordered by id.
+	 */
+	GoalTable(Cursor c)
+	{
+		final int size = c.getCount();
+		mIds = new long[size];
+		mParentRows = new int[size];
+		mNames = new String[size];
+		mDescriptions = new String[size];
+		mImageNames = new String[size];
+		mCompletions = new int[size];
+		mCompletionWeights = new int[size];
+		mDeadlineDays = new int[size];
+		mTimestampDays = new int[size];
+		mRowsById = new LongIntHashMap(size);
+		// parent ids until all rows are known
+		final long[] parentIds = new long[size];
+
+		int row = 0;
+		for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext(), row++)
+		{
+			mIds[row] = c.getLong(0);
+			parentIds[row] = c.isNull(1) ? -1 : c.getLong(1);
+			mNames[row] = c.getString(2);
+			mDescriptions[row] = c.isNull(3) ? "" : c.getString(3);
+			mImageNames[row] = c.isNull(4) ? "" : c.getString(4);
+			mCompletions[row] = c.getInt(5);
+			mCompletionWeights[row] = c.getInt(6);
+			mDeadlineDays[row] = c.getInt(7);
+			mTimestampDays[row] = c.getInt(8);
+			mRowsById.put(mIds[row], row);
+		}
+
+		// count the children per parent, with the top level goals as children
+		// of an extra row at the end
+		mChildOffsets = new int[size + 2];
+		for (row = 0; row < size; row++)
+		{
+			int parentRow = parentIds[row] == -1 ? LongIntHashMap.NOT_FOUND : mRowsById
+					.get(parentIds[row]);
+			mParentRows[row] = parentRow;
+			mChildOffsets[(parentRow == -1 ? size : parentRow) + 1]++;
+		}
+		for (row = 0; row <= size; row++)
+			mChildOffsets[row + 1] += mChildOffsets[row];
+		// rows are in id order, so children end up in id order as well
+		mChildRows = new int[size];
+		final int[] next = new int[size + 1];
+		System.arraycopy(mChildOffsets, 0, next, 0, size + 1);
+		for (row = 0; row < size; row++)
+			mChildRows[next[mParentRows[row] == -1 ? size : mParentRows[row]]++] = row;
+	}
+
+	/**
+	 * @return The number of goals
+	 */
+	public int size()
+	{
+		return mIds.length;
+	}
+
+	/**
+	 * @return The row of the goal or -1 if there is no goal with this id
+	 */
+	public int indexOf(long id)
+	{
+		return mRowsById.get(id);
+	}
+
+	public long getId(int row)
+	{
+		return mIds[row];
+	}
+
+	/**
+	 * @return The row of the parent or -1 for top level goals
+	 */
+	public int getParentRow(int row)
+	{
+		return mParentRows[row];
+	}
+
+	/**
+	 * @return The id of the parent or -1 for top level goals
+	 */
+	public long getParentId(int row)
+	{
+		return mParentRows[row] == -1 ? -1 : mIds[mParentRows[row]];
+	}
+
+	public String getName(int row)
+	{
+		return mNames[row];
+	}
+
+	public String getDescription(int row)
+	{
+		return mDescriptions[row];
+	}
+
+	public String getImageName(int row)
+	{
+		return mImageNames[row];
+	}
+
+	public int getCompletion(int row)
+	{
+		return mCompletions[row];
+	}
+
+	public int getCompletionWeight(int row)
+	{
+		return mCompletionWeights[row];
+	}
+
+	/**
+	 * @return The deadline in epoch days, see {@link EpochDays}
+	 */
+	public int getDeadlineDay(int row)
+	{
+		return mDeadlineDays[row];
+	}
+
+	/**
+	 * @return The creation date in epoch days, see {@link EpochDays}
+	 */
+	public int getTimestampDay(int row)
+	{
+		return mTimestampDays[row];
+	}
+
+	public int getNumChildren(int row)
+	{
+		return mChildOffsets[row + 1] - mChildOffsets[row];
+	}
+
+	/**
+	 * @return The row of the i-th child of the row
+	 */
+	public int getChild(int row, int i)
+	{
+		return mChildRows[mChildOffsets[row] + i];
+	}
+
+	public int getNumTopLevelGoals()
+	{
+		return getNumChildren(mIds.length);
+	}
+
+	/**
+	 * @return The row of the i-th top level goal
+	 */
+	public int getTopLevelGoal(int i)
+	{
+		return getChild(mIds.length, i);
+	}
+
+	/**
+	 * @return A new goal with all attributes of the row
+	 */
+	public Goal toGoal(int row)
+	{
+		Goal g = new Goal(mNames[row], mDescriptions[row], mDeadlineDays[row],
+				mTimestampDays[row]);
+		g.setId(mIds[row]);
+		g.setImageName(mImageNames[row]);
+		g.setCompletion(mCompletions[row]);
+		g.setCompletionWeight(mCompletionWeights[row]);
+		g.setChildCount(getNumChildren(row));
+		return g;
+	}
+}
@@ -0,0 +1,289 @@
+/*
+ *  Copyright (C) 2011 Sebastian Dörner
+ *
+ *  This file is part of Mango.
+ *
+ *  Mango is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Mango is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Mango.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package de.mango.business;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * In-memory copy of the goal tree, indexed by goal id. The GoalProvider loads
+ * it once and keeps it in sync on every write, so reads of the tree never hit
+ * the database.
+ *
+ * Only summaries of the goals are kept, full goals are read from the database
+ * when needed. Summaries are immutable and replaced on every change, so the
+ * cache hands them out without copying.
+ */
+class GoalTreeCache
+{
+	/**
+	 * One goal and its links in the tree.
+	 */
+	private static class Node
+	{
+		GoalSummary summary;
+		Node parent;
+		final ArrayList<Node> children = new ArrayList<Node>();
+		// completion aggregates of the children, see GoalProvider
+		int completionSum;
+		int weightSum;
+
+		Node(GoalSummary summary)
+		{
+			this.summary = summary;
+		}
+	}
+
+	private final HashMap<Long, Node> mNodes = new HashMap<Long, Node>();
+	// children of the invisible root, in id order
+	private final ArrayList<Node> mTopLevelNodes = new ArrayList<Node>();
+
+	/**
+	 * Builds the cache from all goals of the database.
+	 *
+	 * @param summaries
+	 *            Summaries of all goals, ordered by id
+	 * @param completionSums
+	 *            Completion aggregates of the goals at the same position
+	 * @param weightSums
+	 *            Weight aggregates of the goals at the same position
+	 */
+	GoalTreeCache(ArrayList<GoalSummary> summaries, int[] completionSums, int[] weightSums)
+	{
+		for (int i = 0; i < summaries.size(); i++)
+		{
+			Node node = new Node(summaries.get(i));
+			node.completionSum = completionSums[i];
+			node.weightSum = weightSums[i];
+			mNodes.put(node.summary.getId(), node);
+		}
+		// link in a second pass, parents are not guaranteed to come first
+		for (GoalSummary summary : summaries)
+			link(mNodes.get(summary.getId()), summary.getParentId());
+	}
+
+	private void link(Node node, long parentId)
+	{
+		Node parent = mNodes.get(parentId);
+		node.parent = parent;
+		if (parent == null)
+			mTopLevelNodes.add(node);
+		else
+		{
+			parent.children.add(node);
+			parent.summary = parent.summary.withChildCount(parent.children.size());
+		}
+	}
+
+	synchronized ArrayList<GoalSummary> getTopLevelGoals()
+	{
+		return summaries(mTopLevelNodes);
+	}
+
+	/**
+	 * @return possibly empty list of child goals, also if the parent is
+	 *         unknown
+	 */
+	synchronized ArrayList<GoalSummary> getChildGoals(long parentId)
+	{
+		Node parent = mNodes.get(parentId);
+		if (parent == null)
+			return new ArrayList<GoalSummary>();
+		return summaries(parent.children);
+	}
+
+	/**
+	 * @return The summary of the goal or null if there is no goal with this
+	 *         id.
+	 */
+	synchronized GoalSummary getGoal(long id)
+	{
+		Node node = mNodes.get(id);
+		return node == null ? null : node.summary;
+	}
+
+	synchronized boolean contains(long id)
+	{
+		return mNodes.containsKey(id);
+	}
+
+	synchronized boolean hasChildren(long id)
+	{
+		Node node = mNodes.get(id);
+		return node != null && !node.children.isEmpty();
+	}
+
+	/**
+	 * @return The id of the parent or -1 for top level goals and unknown ids.
+	 */
+	synchronized long getParentId(long id)
+	{
+		Node node = mNodes.get(id);
+		if (node == null || node.parent == null)
+			return -1;
+		return node.parent.summary.getId();
+	}
+
+	/**
+	 * @return The number of ancestors of the goal, 0 for top level goals and
+	 *         unknown ids.
+	 */
+	synchronized int getDepth(long id)
+	{
+		Node node = mNodes.get(id);
+		int depth = 0;
+		if (node != null)
+			for (Node n = node.parent; n != null; n = n.parent)
+				depth++;
+		return depth;
+	}
+
+	/**
+	 * @return The names of all images of the goal and its descendants, empty
+	 *         if the goal is unknown.
+	 */
+	synchronized ArrayList<String> getSubtreeImageNames(long id)
+	{
+		ArrayList<String> imageNames = new ArrayList<String>();
+		Node node = mNodes.get(id);
+		if (node != null)
+			collectImageNames(node, imageNames);
+		return imageNames;
+	}
+
+	private static void collectImageNames(Node node, ArrayList<String> imageNames)
+	{
+		if (node.summary.getImageName().length() > 0)
+			imageNames.add(node.summary.getImageName());
+		for (Node child : node.children)
+			collectImageNames(child, imageNames);
+	}
+
+	/**
+	 * Adds a newly inserted goal as last child of its parent. Does nothing if
+	 * the goal is already known, which is the case if the cache has been
+	 * loaded after the goal has been written.
+	 *
+	 * @param id
+	 *            Database id of the new goal
+	 * @param g
+	 *            The goal
+	 * @param parentId
+	 *            Id of the parent or -1 for a top level goal
+	 */
+	synchronized void insert(long id, Goal g, long parentId)
+	{
+		if (mNodes.containsKey(id))
+			return;
+		Node node = new Node(new GoalSummary(id, parentId, g.getName(), g.getImageName(), g
+				.getCompletion(), g.getCompletionWeight(), 0));
+		mNodes.put(id, node);
+		link(node, parentId);
+	}
+
+	/**
+	 * Takes over all attributes of an updated goal.
+	 *
+	 * @param withCompletion
+	 *            Whether the completion has been written as well (which is
+	 *            only the case for leaves)
+	 */
+	synchronized void update(long id, Goal g, boolean withCompletion)
+	{
+		Node node = mNodes.get(id);
+		if (node == null)
+			return;
+		GoalSummary old = node.summary;
+		node.summary = new GoalSummary(id, old.getParentId(), g.getName(), g.getImageName(),
+				withCompletion ? g.getCompletion() : old.getCompletion(), g.getCompletionWeight(),
+				old.getChildCount());
+	}
+
+	synchronized void updateCompletion(long id, int completion)
+	{
+		Node node = mNodes.get(id);
+		if (node != null)
+			node.summary = node.summary.withCompletion(completion);
+	}
+
+	/**
+	 * @return Sum of completion * completionWeight over all children.
+	 */
+	synchronized int getCompletionSum(long id)
+	{
+		Node node = mNodes.get(id);
+		return node == null ? 0 : node.completionSum;
+	}
+
+	/**
+	 * @return Sum of completionWeight over all children.
+	 */
+	synchronized int getWeightSum(long id)
+	{
+		Node node = mNodes.get(id);
+		return node == null ? 0 : node.weightSum;
+	}
+
+	synchronized void updateAggregates(long id, int completion, int completionSum,
+			int weightSum)
+	{
+		Node node = mNodes.get(id);
+		if (node == null)
+			return;
+		node.summary = node.summary.withCompletion(completion);
+		node.completionSum = completionSum;
+		node.weightSum = weightSum;
+	}
+
+	/**
+	 * Removes a goal together with all its descendants.
+	 */
+	synchronized void remove(long id)
+	{
+		Node node = mNodes.get(id);
+		if (node == null)
+			return;
+		if (node.parent == null)
+			mTopLevelNodes.remove(node);
+		else
+		{
+			node.parent.children.remove(node);
+			node.parent.summary = node.parent.summary.withChildCount(node.parent.children
+					.size());
+		}
+		forget(node);
+	}
+
+	private void forget(Node node)
+	{
+		for (Node child : node.children)
+			forget(child);
+		mNodes.remove(node.summary.getId());
+	}
+
+	private static ArrayList<GoalSummary> summaries(ArrayList<Node> nodes)
+	{
+		ArrayList<GoalSummary> results = new ArrayList<GoalSummary>(nodes.size());
+		for (Node n : nodes)
+			results.add(n.summary);
+		return results;
+	}
+}
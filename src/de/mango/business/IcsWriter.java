@@ -0,0 +1,230 @@
+/*
+ *  Copyright (C) 2011 Sebastian Dörner
+ *
+ *  This file is part of Mango.
+ *
+ *  Mango is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Mango is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Mango.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package de.mango.business;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+
+/**
+ * Writes goals as all-day events of an iCalendar file according to RFC 5545:
+ * UTF-8 with CRLF line endings, lines folded after 75 octets and escaped text
+ * values.
+ *
+ * Each line is put together in a reused buffer and written through a buffered
+ * writer, so writing an event creates hardly any objects.
+ */
+class IcsWriter implements Closeable
+{
+	private static final String CRLF = "\r\n";
+	// maximum length of a line without the line break, in UTF-8 octets
+	private static final int MAX_LINE_OCTETS = 75;
+	private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000;
+
+	private final Writer mOut;
+	// the current line
+	private final StringBuilder mLine = new StringBuilder(256);
+	// for copying parts of the line to the writer
+	private char[] mChars = new char[256];
+	// time of the export in UTC, used as DTSTAMP of all events
+	private final String mTimestamp;
+
+	IcsWriter(OutputStream out) throws UnsupportedEncodingException
+	{
+		mOut = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), 8192);
+		final long now = System.currentTimeMillis();
+		appendDateTime((int) (now / MILLIS_PER_DAY), (int) (now % MILLIS_PER_DAY / 1000));
+		mTimestamp = mLine.toString();
+		mLine.setLength(0);
+	}
+
+	void beginCalendar() throws IOException
+	{
+		writeLine("BEGIN:VCALENDAR");
+		writeLine("VERSION:2.0");
+		writeLine("PRODID:-//Mango//Mango Goal Organizer//EN");
+		writeLine("CALSCALE:GREGORIAN");
+		writeLine("METHOD:PUBLISH");
+	}
+
+	/**
+	 * Writes a goal as an event lasting the whole day of its deadline.
+	 *
+	 * @param id
+	 *            Database id of the goal, which makes up the UID
+	 * @param name
+	 *            Name of the goal
+	 * @param description
+	 *            Description of the goal
+	 * @param deadlineDay
+	 *            Deadline in epoch days
+	 * @param timestampDay
+	 *            Creation date in epoch days
+	 */
+	void writeEvent(long id, String name, String description, int deadlineDay,
+			int timestampDay) throws IOException
+	{
+		writeLine("BEGIN:VEVENT");
+		mLine.append("UID:goal-").append(id).append("@mango");
+		writeLine();
+		mLine.append("DTSTAMP:").append(mTimestamp);
+		writeLine();
+		mLine.append("DTSTART;VALUE=DATE:");
+		appendDate(deadlineDay);
+		writeLine();
+		// events end exclusively, so a whole day ends on the next one
+		mLine.append("DTEND;VALUE=DATE:");
+		appendDate(deadlineDay + 1);
+		writeLine();
+		// the time of creation is not stored, only the day
+		mLine.append("CREATED:");
+		appendDateTime(timestampDay, 0);
+		writeLine();
+		mLine.append("SUMMARY:");
+		appendText(name);
+		writeLine();
+		mLine.append("DESCRIPTION:");
+		appendText(description);
+		writeLine();
+		writeLine("END:VEVENT");
+	}
+
+	void endCalendar() throws IOException
+	{
+		writeLine("END:VCALENDAR");
+	}
+
+	/**
+	 * Flushes everything and closes the underlying stream.
+	 */
+	public void close() throws IOException
+	{
+		mOut.close();
+	}
+
+	/**
+	 * Appends a date as YYYYMMDD.
+	 */
+	private void appendDate(int epochDay)
+	{
+		int[] date = EpochDays.toDate(epochDay);
+		mLine.append(date[0]);
+		appendTwoDigits(date[1]);
+		appendTwoDigits(date[2]);
+	}
+
+	/**
+	 * Appends a UTC date and time as YYYYMMDDTHHMMSSZ.
+	 */
+	private void appendDateTime(int epochDay, int secondOfDay)
+	{
+		appendDate(epochDay);
+		mLine.append('T');
+		appendTwoDigits(secondOfDay / 3600);
+		appendTwoDigits(secondOfDay / 60 % 60);
+		appendTwoDigits(secondOfDay % 60);
+		mLine.append('Z');
+	}
+
+	private void appendTwoDigits(int value)
+	{
+		mLine.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+	}
+
+	/**
+	 * Appends a TEXT value, escaping backslashes, semicolons, commas and line
+	 * breaks.
+	 */
+	private void appendText(String text)
+	{
+		for (int i = 0; i < text.length(); i++)
+		{
+			char c = text.charAt(i);
+			switch (c)
+			{
+			case '\\':
+			case ';':
+			case ',':
+				mLine.append('\\').append(c);
+				break;
+			case '\n':
+				mLine.append("\\n");
+				break;
+			case '\r':
+				// \r\n is a single line break
+				if (i + 1 >= text.length() || text.charAt(i + 1) != '\n')
+					mLine.append("\\n");
+				break;
+			default:
+				mLine.append(c);
+			}
+		}
+	}
+
+	private void writeLine(String line) throws IOException
+	{
+		mLine.append(line);
+		writeLine();
+	}
+
+	/**
+	 * Writes the current line, folding it into several lines if it is too
+	 * long, and clears it.
+	 */
+	private void writeLine() throws IOException
+	{
+		int octets = 0;
+		int start = 0;
+		for (int i = 0; i < mLine.length(); i++)
+		{
+			final char c = mLine.charAt(i);
+			// a surrogate pair is four octets, count it on the high surrogate
+			// so the pair is never split
+			final int length = c < 0x80 ? 1 : c < 0x800 ? 2
+					: Character.isHighSurrogate(c) ? 4 : Character.isLowSurrogate(c) ? 0 : 3;
+			if (octets + length > MAX_LINE_OCTETS)
+			{
+				write(start, i);
+				// continuation lines start with a space, which counts as well
+				mOut.write(CRLF);
+				mOut.write(' ');
+				start = i;
+				octets = 1;
+			}
+			octets += length;
+		}
+		write(start, mLine.length());
+		mOut.write(CRLF);
+		mLine.setLength(0);
+	}
+
+	private void write(int start, int end) throws IOException
+	{
+		if (mChars.length < end - start)
+			mChars = new char[end - start];
+		mLine.getChars(start, end, mChars, 0);
+		mOut.write(mChars, 0, end - start);
+	}
+}
@@ -21,29 +21,21 @@
 
 package de.mango.business;
 
+import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.GregorianCalendar;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
 import android.content.Context;
 import android.util.Log;
+import android.util.Xml;
 
 /**
  * Class to handle all import and export (currently xml and ics)
@@ -57,9 +49,6 @@ public class ImExport
 	public static final boolean DEBUG = false;
 	public static final String TAG = "Mango";
 
-	// ISO date format
-	private static final SimpleDateFormat SDF = new SimpleDateFormat(
-			"yyyy-MM-dd");
 	private static String[] mFileList;
 
 	/**
@@ -88,25 +77,17 @@ public class ImExport
 			return false;
 		}
 
-		// create DOM document
-		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-		DocumentBuilder documentBuilder;
-		try
-		{
-			documentBuilder = factory.newDocumentBuilder();
-		} catch (ParserConfigurationException ex)
-		{
-			if (DEBUG)
-				Log.w(TAG, ex.getMessage());
-			return false;
-		}
-		// read the file and import its contents into DOM
-		Document doc;
+		mFileList = context.fileList();
+		// insert the goals while parsing, so only the ids of the open goal
+		// tags are kept in memory
+		gp.beginBulkInsert();
 		try
 		{
-			doc = documentBuilder.parse(in);
-			in.close();
-		} catch (SAXException e)
+			XmlPullParser parser = Xml.newPullParser();
+			parser.setInput(in, null);
+			importGoals(gp, parser);
+			gp.setBulkInsertSuccessful();
+		} catch (XmlPullParserException e)
 		{
 			if (DEBUG)
 			{
@@ -119,85 +100,104 @@ public class ImExport
 			if (DEBUG)
 				Log.w(TAG, e.getMessage());
 			return false;
-		}
-
-		// parse DOM
-		Element mangoElem = doc.getDocumentElement();
-		// System.out.println(mangoElem.getTagName());
-
-		mFileList = context.fileList();
-		NodeList goalElements = mangoElem.getChildNodes();
-		Node n;
-		for (int i = 0; i < goalElements.getLength(); i++)
+		} catch (NumberFormatException e)
 		{
-			n = goalElements.item(i);
-			if (n.getNodeType() == Node.ELEMENT_NODE)
-				traverseFromXml(gp, (Element) n, -1);
+			if (DEBUG)
+				Log.w(TAG, "Invalid number in goal attributes: " + e.getMessage());
+			return false;
+		} finally
+		{
+			gp.endBulkInsert();
+			closeQuietly(in);
 		}
 
 		return true;
 	}
 
-	private static void traverseFromXml(GoalProvider gp, Element root, long parent)
+	/**
+	 * Inserts all goal tags below the root element of the document. Tags
+	 * which are no goal tags are skipped together with their content.
+	 */
+	private static void importGoals(GoalProvider gp, XmlPullParser parser)
+			throws XmlPullParserException, IOException
 	{
-		// exit if tag is no goal-tag
-		if (root.getTagName().compareToIgnoreCase("goal") != 0)
-			return;
+		// ids of the goals of the open tags by depth, top level goals are
+		// children of the root element at depth 1
+		long[] goalIds = new long[16];
+		goalIds[1] = -1;
+		// depth of the tag being skipped, 0 if none
+		int skipDepth = 0;
+		for (int event = parser.next(); event != XmlPullParser.END_DOCUMENT; event = parser
+				.next())
+		{
+			if (event == XmlPullParser.END_TAG && parser.getDepth() == skipDepth)
+				skipDepth = 0;
+			if (event != XmlPullParser.START_TAG || skipDepth != 0)
+				continue;
+			final int depth = parser.getDepth();
+			if (depth == 1)
+				continue;
+			if (!parser.getName().equalsIgnoreCase("goal"))
+			{
+				skipDepth = depth;
+				continue;
+			}
+			if (depth == goalIds.length)
+			{
+				long[] deeper = new long[goalIds.length * 2];
+				System.arraycopy(goalIds, 0, deeper, 0, goalIds.length);
+				goalIds = deeper;
+			}
+			goalIds[depth] = gp.insertGoal(goalFromXml(parser), goalIds[depth - 1]);
+		}
+	}
 
-		// read deadline
-		GregorianCalendar cal = new GregorianCalendar();
-		Date d;
+	/**
+	 * Reads a goal from the attributes of the current goal tag.
+	 */
+	private static Goal goalFromXml(XmlPullParser parser)
+	{
+		// read deadline and time stamp, both default to today
+		final int today = EpochDays.today();
+		int deadline = today;
 		try
 		{
-			d = SDF.parse(root.getAttribute("deadline"));
-			cal.setTime(d);
-			//new dates are set to this time, so they are not in the past
-			//for proper "parent isn't earlier"-check old times need the same values
-			cal.set(Calendar.HOUR_OF_DAY, 23);
-			cal.set(Calendar.MINUTE, 59);
-			cal.set(Calendar.SECOND, 59);
-		} catch (ParseException e)
+			deadline = EpochDays.parseIso(attribute(parser, "deadline"));
+		} catch (NumberFormatException e)
 		{
 			if (DEBUG)
 				Log.w(TAG, "No deadline found or wrong format.");
 		}
-		Goal g = new Goal(root.getAttribute("name"), root
-				.getAttribute("description"), cal);
-		g.setCompletionWeight(root.getAttribute("weight").equals("") ? 1
-				: Integer.valueOf(root.getAttribute("weight")));
-		g.setCompletion(root.getAttribute("completion").equals("") ? 0
-				: Integer.valueOf(root.getAttribute("completion")));
-
-		// take over image name if image existent
-		String imgName = root.getAttribute("imageName");
-		g.setImageName(FileExists(imgName) ? imgName : "");
-		// read time stamp
-		cal = new GregorianCalendar();
+		int timestamp = today;
 		try
 		{
-			d = SDF.parse(root.getAttribute("timestamp"));
-			cal.setTime(d);
-		} catch (ParseException e)
+			timestamp = EpochDays.parseIso(attribute(parser, "timestamp"));
+		} catch (NumberFormatException e)
 		{
 			if (DEBUG)
 				Log.w(TAG, "No timestamp found or wrong format.");
 		}
-		g.setTimestamp(cal);
-		//insert goal into DB
-		long goalid = gp.insertGoal(g, parent);
+		Goal g = new Goal(attribute(parser, "name"), attribute(parser, "description"),
+				deadline, timestamp);
+		String weight = attribute(parser, "weight");
+		g.setCompletionWeight(weight.equals("") ? 1 : Integer.parseInt(weight));
+		String completion = attribute(parser, "completion");
+		g.setCompletion(completion.equals("") ? 0 : Integer.parseInt(completion));
 
-		// recurse for children
-		if (root.hasChildNodes())
-		{
-			NodeList children = root.getChildNodes();
-			Node node;
-			for (int i = 0; i < children.getLength(); i++)
-			{
-				node = children.item(i);
-				if (node.getNodeType() == Node.ELEMENT_NODE)
-					traverseFromXml(gp, (Element) node, goalid);
-			}
-		}
+		// take over image name if image existent
+		String imgName = attribute(parser, "imageName");
+		g.setImageName(FileExists(imgName) ? imgName : "");
+		return g;
+	}
+
+	/**
+	 * @return The value of the attribute of the current tag, empty if it is
+	 *         missing
+	 */
+	private static String attribute(XmlPullParser parser, String name)
+	{
+		String value = parser.getAttributeValue(null, name);
+		return value != null ? value : "";
 	}
 
 	/**
@@ -232,75 +232,147 @@ public class ImExport
 	public static boolean exportToXml(GoalProvider gp, String filename,
 			Context context)
 	{
+		Writer out = null;
 		try
 		{
 			FileOutputStream os = filename.contains("/") ? new FileOutputStream(
 					filename)
 					: context.openFileOutput(filename,
 							Context.MODE_WORLD_READABLE);
-			os.write("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n".getBytes());
-			StringBuilder sb = new StringBuilder();
-			sb.append("<mango>\n");
-			for (Goal g : gp.getTopLevelGoals())
-				traverseToXml(gp, g, sb, 1);
-			sb.append("</mango>");
-			os.write(sb.toString().getBytes());
-			os.close();
+			// write through a small buffer instead of building the document
+			// in memory
+			out = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"), 8192);
+			out.write("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n");
+			out.write("<mango>\n");
+			// all goals with a single query
+			GoalTable goals = gp.getGoalTable();
+			for (int i = 0; i < goals.getNumTopLevelGoals(); i++)
+				goalToXml(goals, goals.getTopLevelGoal(i), out, 1);
+			out.write("</mango>");
+			out.close();
+			out = null;
 		}
 		catch (Exception e)
 		{
 			if (DEBUG)
 				Log.w(TAG, "Error exporting to XML:" + e.getMessage());
 			return false;
+		} finally
+		{
+			closeQuietly(out);
 		}
 
 		return true;
 	}
+
 	/**
-	 * Traverses a tree of goals ands adds their XML representation to a
-	 * StringBuilder
+	 * Writes the XML representation of a goal and all its descendants
 	 *
-	 * @param gp
-	 * 			  GoalProvider giving access to the goals
-	 * @param goal
-	 *            Root of the goal tree to be converted
-	 * @param s
-	 *            StringBuilder to pick up the string representation
+	 * @param goals
+	 *            All goals
+	 * @param row
+	 *            Row of the goal in the table
+	 * @param out
+	 *            Writer to write the XML to
 	 * @param depth
 	 *            Depth in the goal tree to control XMl indentation
 	 */
-	private static void traverseToXml(GoalProvider gp, Goal goal, StringBuilder s, int depth)
+	private static void goalToXml(GoalTable goals, int row, Writer out, int depth)
+			throws IOException
 	{
 		for (int i = 0; i < depth; i++)
-			s.append("   ");
-		s.append("<goal name=\"");
-		s.append(goal.getName());
-		s.append("\" description=\"");
-		s.append(goal.getDescription());
-		s.append("\" imageName=\"");
-		s.append(goal.getImageName());
+			out.write("   ");
+		out.write("<goal name=\"");
+		writeEscaped(goals.getName(row), out);
+		out.write("\" description=\"");
+		writeEscaped(goals.getDescription(row), out);
+		out.write("\" imageName=\"");
+		writeEscaped(goals.getImageName(row), out);
 
-		s.append("\" completion=\"");
-		s.append(goal.getCompletion());
-		s.append("\" weight=\"");
-		s.append(goal.getCompletionWeight());
+		out.write("\" completion=\"");
+		out.write(Integer.toString(goals.getCompletion(row)));
+		out.write("\" weight=\"");
+		out.write(Integer.toString(goals.getCompletionWeight(row)));
 
-		s.append("\" deadline=\"");
-		s.append(SDF.format(goal.getDeadline().getTime()));
-		s.append("\" timestamp=\"");
-		s.append(SDF.format(goal.getTimestamp().getTime()));
-		s.append("\"");
-		ArrayList<Goal> children = gp.getChildGoals(goal.getId());
-		if (children.isEmpty())
-			s.append(" />\n");
-		else
+		out.write("\" deadline=\"");
+		out.write(EpochDays.formatIso(goals.getDeadlineDay(row)));
+		out.write("\" timestamp=\"");
+		out.write(EpochDays.formatIso(goals.getTimestampDay(row)));
+		out.write("\"");
+
+		final int numChildren = goals.getNumChildren(row);
+		if (numChildren == 0)
 		{
-			s.append(">\n");
-			for (Goal c : children)
-				traverseToXml(gp, c, s, depth + 1);
-			for (int i = 0; i < depth; i++)
-				s.append("   ");
-			s.append("</goal>\n");
+			out.write(" />\n");
+			return;
+		}
+		out.write(">\n");
+		for (int i = 0; i < numChildren; i++)
+			goalToXml(goals, goals.getChild(row, i), out, depth + 1);
+		for (int i = 0; i < depth; i++)
+			out.write("   ");
+		out.write("</goal>\n");
+	}
+
+	/**
+	 * Writes a string as the value of an attribute in double quotes. Line
+	 * breaks and tabs are escaped as well, a parser would turn them into
+	 * spaces otherwise.
+	 */
+	private static void writeEscaped(String value, Writer out) throws IOException
+	{
+		// write unescaped runs at once
+		int start = 0;
+		for (int i = 0; i < value.length(); i++)
+		{
+			String entity;
+			switch (value.charAt(i))
+			{
+			case '&':
+				entity = "&amp;";
+				break;
+			case '<':
+				entity = "&lt;";
+				break;
+			case '>':
+				entity = "&gt;";
+				break;
+			case '"':
+				entity = "&quot;";
+				break;
+			case '\n':
+				entity = "&#10;";
+				break;
+			case '\r':
+				entity = "&#13;";
+				break;
+			case '\t':
+				entity = "&#9;";
+				break;
+			default:
+				continue;
+			}
+			out.write(value, start, i - start);
+			out.write(entity);
+			start = i + 1;
+		}
+		out.write(value, start, value.length() - start);
+	}
+
+	/**
+	 * Closes a stream, ignoring errors. Does nothing for null.
+	 */
+	private static void closeQuietly(Closeable c)
+	{
+		if (c == null)
+			return;
+		try
+		{
+			c.close();
+		} catch (IOException e)
+		{
+			if (DEBUG)
+				Log.w(TAG, e.getMessage());
 		}
 	}
 
@@ -312,94 +384,33 @@ public class ImExport
 	 */
 	public static boolean exportToIcs(GoalProvider gp, Context context, String filename)
 	{
+		IcsWriter ics = null;
 		try
 		{
 			FileOutputStream out = filename.contains("/") ? new FileOutputStream(
 					filename)
 					: context.openFileOutput(filename,
 							Context.MODE_WORLD_READABLE);
-			out.write("BEGIN:VCALENDAR".getBytes());
-			out.write(System.getProperty("line.separator").getBytes());
-			out.write("CALSCALE:GREGORIAN".getBytes());
-			out.write(System.getProperty("line.separator").getBytes());
-			out.write("METHOD:PUBLISH".getBytes());
-			out.write(System.getProperty("line.separator").getBytes());
-			out.write("VERSION:2.0".getBytes());
-			out.write(System.getProperty("line.separator").getBytes());
-			// Parse of calendar entries
-			GregorianCalendar greg = new GregorianCalendar();
-
-			ArrayList<Goal> goals = gp.getAllGoals();
-			for (Goal g: goals)
-			{
-				out.write("BEGIN:VEVENT".getBytes());
-				out.write(System.getProperty("line.separator").getBytes());
-				out.write("DTSTART;VALUE=DATE:".getBytes());
-				out.write(ImExport.toIcsString(g.getDeadline(), true)
-						.getBytes());
-				out.write(System.getProperty("line.separator").getBytes());
-				out.write("CREATED:".getBytes());
-				out.write(ImExport.toIcsString(g.getTimestamp(), false)
-						.getBytes());
-				out.write(System.getProperty("line.separator").getBytes());
-				out.write("SUMMARY:".getBytes());
-				out.write(g.getName().getBytes());
-				out.write(System.getProperty("line.separator").getBytes());
-				out.write("DESCRIPTION:".getBytes());
-				out.write(g.getDescription().getBytes());
-				out.write(System.getProperty("line.separator").getBytes());
-				out.write("DTEND;VALUE=DATE:".getBytes());
-				// Goals have a time frame of a full day
-				greg = g.getDeadline();
-				greg.add(Calendar.DAY_OF_MONTH, 1);
-				out.write(ImExport.toIcsString(greg, true).getBytes());
-				out.write(System.getProperty("line.separator").getBytes());
-				out.write("END:VEVENT".getBytes());
-				out.write(System.getProperty("line.separator").getBytes());
-			}
-			out.write("END:VCALENDAR".getBytes());
+			ics = new IcsWriter(out);
+			ics.beginCalendar();
+			// all goals with a single query, without creating goal objects
+			GoalTable goals = gp.getGoalTable();
+			for (int row = 0; row < goals.size(); row++)
+				ics.writeEvent(goals.getId(row), goals.getName(row), goals
+						.getDescription(row), goals.getDeadlineDay(row), goals
+						.getTimestampDay(row));
+			ics.endCalendar();
+			ics.close();
+			ics = null;
 		} catch (Exception f)
 		{// Catch exception if any
 			if (DEBUG)
 				Log.w(TAG, "Error in exportToICS: " + f.getMessage());
-		}
-		return true;
-	}
-
-	/**
-	 * Gets the ICS time stamp for a given Calendar.
-	 * @param cal
-	 *            Calendar to be converted.
-	 * @param brief
-	 *            Use short format (date only)
-	 * @return String in form of YYYYMMDD or YYYYMMDDTHHMMSS with T as separator
-	 *         between date and time
-	 */
-	private static String toIcsString(GregorianCalendar cal, boolean brief)
-	{
-		String s = "";
-		s += cal.get(Calendar.YEAR);
-		int month = cal.get(Calendar.MONTH) + 1;
-		if ( month < 10)
-			s += "0";
-		s += month;
-		if (cal.get(Calendar.DAY_OF_MONTH) < 10)
-			s += "0";
-		s += cal.get(Calendar.DAY_OF_MONTH);
-
-		if (brief == false)
+			return false;
+		} finally
 		{
-			s += "T";
-			if (cal.get(Calendar.HOUR_OF_DAY) < 10)
-				s += "0";
-			s += cal.get(Calendar.HOUR_OF_DAY);
-			if (cal.get(Calendar.MINUTE) < 10)
-				s += "0";
-			s += cal.get(Calendar.MINUTE);
-			if (cal.get(Calendar.SECOND) < 10)
-				s += "0";
-			s += cal.get(Calendar.SECOND);
+			closeQuietly(ics);
 		}
-		return s;
+		return true;
 	}
 }
@@ -0,0 +1,302 @@
+/*
+ *  Copyright (C) 2011 Sebastian Dörner
+ *
+ *  This file is part of Mango.
+ *
+ *  Mango is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Mango is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Mango.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package de.mango.business;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ThreadFactory;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Downloads images from the web on a fixed number of worker threads.
+ *
+ * Waiting downloads are started by priority and then in the order they have
+ * been submitted, skipping those whose host already has the maximum number of
+ * running downloads. Cancelling a running download closes its connection, so
+ * the worker is free again right away instead of waiting for the transfer.
+ *
+ * All methods may be called from any thread, results are delivered on the UI
+ * thread.
+ */
+class ImageDownloadScheduler
+{
+	private static final boolean DEBUG = false;
+	private static final String TAG = "Mango";
+
+	/** Priority of images which are shown as soon as they are there */
+	static final int PRIORITY_VISIBLE = 0;
+	/** Priority of images which may be shown later */
+	static final int PRIORITY_PREFETCH = 1;
+
+	private static final int CONNECT_TIMEOUT_MILLIS = 10 * 1000;
+	private static final int READ_TIMEOUT_MILLIS = 20 * 1000;
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+	/**
+	 * Interface for receiving the result of a download.
+	 */
+	interface Callback
+	{
+		/**
+		 * Called on the UI thread when the download has finished.
+		 *
+		 * @param image
+		 *            The downloaded image or null if it could not be
+		 *            downloaded or decoded
+		 */
+		void downloaded(Bitmap image);
+	}
+
+	private final int mNumWorkers;
+	private final int mMaxPerHost;
+	private final ThreadFactory mThreadFactory = new BackgroundThreadFactory("ImageDownload");
+	// workers are only started once there is something to download
+	private boolean mWorkersStarted = false;
+	// waiting downloads, ordered by priority and then by submission
+	private final ArrayList<Download> mQueue = new ArrayList<Download>();
+	// number of running downloads by host
+	private final HashMap<String, Integer> mRunningPerHost = new HashMap<String, Integer>();
+
+	/**
+	 * @param numWorkers
+	 *            Maximum number of downloads running at the same time
+	 * @param maxPerHost
+	 *            Maximum number of downloads from the same host running at the
+	 *            same time
+	 */
+	ImageDownloadScheduler(int numWorkers, int maxPerHost)
+	{
+		mNumWorkers = numWorkers;
+		mMaxPerHost = maxPerHost;
+	}
+
+	/**
+	 * Queues the download of an image.
+	 *
+	 * @param url
+	 *            HTTP URL of the image
+	 * @param priority
+	 *            {@link #PRIORITY_VISIBLE} or {@link #PRIORITY_PREFETCH}
+	 * @param callback
+	 *            Called once the download has finished, but not once it has
+	 *            been cancelled
+	 * @return The download, for cancelling it
+	 */
+	Download submit(String url, int priority, Callback callback)
+	{
+		Download download = new Download(url, priority, callback);
+		synchronized (this)
+		{
+			int i = mQueue.size();
+			while (i > 0 && mQueue.get(i - 1).mPriority > priority)
+				i--;
+			mQueue.add(i, download);
+			if (!mWorkersStarted)
+			{
+				for (int w = 0; w < mNumWorkers; w++)
+					mThreadFactory.newThread(new Worker()).start();
+				mWorkersStarted = true;
+			}
+			notifyAll();
+		}
+		return download;
+	}
+
+	/**
+	 * Waits for the first download in the queue whose host has a download
+	 * slot left and takes the slot.
+	 */
+	private synchronized Download take() throws InterruptedException
+	{
+		while (true)
+		{
+			for (int i = 0; i < mQueue.size(); i++)
+			{
+				Download download = mQueue.get(i);
+				Integer running = mRunningPerHost.get(download.mHost);
+				if (running == null || running < mMaxPerHost)
+				{
+					mQueue.remove(i);
+					mRunningPerHost.put(download.mHost, running == null ? 1 : running + 1);
+					return download;
+				}
+			}
+			wait();
+		}
+	}
+
+	/**
+	 * Gives back the download slot of the host.
+	 */
+	private synchronized void finished(Download download)
+	{
+		int running = mRunningPerHost.get(download.mHost) - 1;
+		if (running == 0)
+			mRunningPerHost.remove(download.mHost);
+		else
+			mRunningPerHost.put(download.mHost, running);
+		notifyAll();
+	}
+
+	private class Worker implements Runnable
+	{
+		public void run()
+		{
+			try
+			{
+				while (true)
+				{
+					Download download = take();
+					try
+					{
+						download.run();
+					} finally
+					{
+						finished(download);
+					}
+				}
+			} catch (InterruptedException e)
+			{
+				// the process is going away
+			}
+		}
+	}
+
+	/**
+	 * A single image download, which may be cancelled at any time.
+	 */
+	class Download
+	{
+		private final String mUrl;
+		private final String mHost;
+		private final int mPriority;
+		private final Callback mCallback;
+		// both guarded by the scheduler
+		private boolean mCancelled = false;
+		private HttpURLConnection mConnection;
+
+		private Download(String url, int priority, Callback callback)
+		{
+			mUrl = url;
+			mPriority = priority;
+			mCallback = callback;
+			String host;
+			try
+			{
+				host = new URL(url).getHost();
+			} catch (MalformedURLException e)
+			{
+				// fails right away when it is started
+				host = "";
+			}
+			mHost = host;
+		}
+
+		/**
+		 * Removes the download from the queue or aborts it if it is running.
+		 * The callback is not called afterwards.
+		 */
+		void cancel()
+		{
+			HttpURLConnection connection;
+			synchronized (ImageDownloadScheduler.this)
+			{
+				if (mCancelled)
+					return;
+				mCancelled = true;
+				mQueue.remove(this);
+				connection = mConnection;
+			}
+			// closes the socket, so a blocking read fails right away
+			if (connection != null)
+				connection.disconnect();
+		}
+
+		private boolean isCancelled()
+		{
+			synchronized (ImageDownloadScheduler.this)
+			{
+				return mCancelled;
+			}
+		}
+
+		private void run()
+		{
+			Bitmap bitmap = null;
+			HttpURLConnection connection = null;
+			try
+			{
+				URLConnection c = new URL(mUrl).openConnection();
+				if (!(c instanceof HttpURLConnection))
+					throw new IOException("Not an HTTP URL");
+				connection = (HttpURLConnection) c;
+				connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+				connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+				synchronized (ImageDownloadScheduler.this)
+				{
+					if (mCancelled)
+						return;
+					mConnection = connection;
+				}
+				InputStream in = new BufferedInputStream(connection.getInputStream(), BUFFER_SIZE);
+				try
+				{
+					bitmap = BitmapFactory.decodeStream(new ImageHandling.FlushedInputStream(in));
+				} finally
+				{
+					in.close();
+				}
+			} catch (IOException e)
+			{
+				if (DEBUG && !isCancelled())
+					Log.w(TAG, "Failed to retrieve " + mUrl + ": " + e.getMessage());
+			} finally
+			{
+				if (connection != null)
+					connection.disconnect();
+			}
+			final Bitmap result = bitmap;
+			sMainHandler.post(new Runnable()
+			{
+				public void run()
+				{
+					// cancelled while the result was on its way
+					if (!isCancelled())
+						mCallback.downloaded(result);
+				}
+			});
+		}
+	}
+}
@@ -59,6 +59,20 @@ public class ImageHandling
 	public static final boolean DEBUG = false;
 	public static final String TAG = "Mango";
 
+	/**
+	 * Maximum size in both directions goal images are shown in, larger
+	 * images are scaled down when they are loaded.
+	 */
+	public static final int GOAL_IMAGE_SIZE = 320;
+	private static final int DECODE_BUFFER_SIZE = 16 * 1024;
+	// few downloads at once are faster than many on slow mobile connections
+	private static final int DOWNLOAD_THREADS = 4;
+	private static final int DOWNLOADS_PER_HOST = 2;
+
+	// downloads of search results, shared by all searches
+	private static final ImageDownloadScheduler sDownloads = new ImageDownloadScheduler(
+			DOWNLOAD_THREADS, DOWNLOADS_PER_HOST);
+
 	// Bitmaps received from async network threads
 	private final Vector<Bitmap> bitmaps = new Vector<Bitmap>();
 	// number of Bitmaps wanted (to know when we're done)
@@ -68,7 +82,7 @@ public class ImageHandling
 	// UI thread activity to perform ui actions on
 
 	private SearchTask searchTask;
-	private final Set<DownloadImageTask> imageDownloadTasks = new HashSet<DownloadImageTask>();
+	private final Set<ImageDownloadScheduler.Download> imageDownloads = new HashSet<ImageDownloadScheduler.Download>();
 
 	private ImageDownloadCompleteCallback imageDownloadCompleteCallback;
 
@@ -179,15 +193,42 @@ public class ImageHandling
 	 * @return The Bitmap corresponding to the given image file.
 	 */
 	public static Bitmap loadLocalBitmap(String filename, Context context)
+	{
+		return loadLocalBitmap(filename, context, Integer.MAX_VALUE, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Loads an image from the local file system, scaled down while decoding
+	 * if it is a lot larger than needed.
+	 *
+	 * @param filename
+	 *            Name of the file to be opened. Must be either absolute or
+	 *            without any path separator.
+	 * @param context
+	 *            Application context for opening images private to our
+	 *            application.
+	 * @param maxWidth
+	 *            Width of the area the image is shown in
+	 * @param maxHeight
+	 *            Height of the area the image is shown in
+	 * @return The Bitmap corresponding to the given image file, large enough
+	 *         to fill the area when scaled keeping its aspect ratio. Null if
+	 *         it cannot be read.
+	 * @see #computeSampleSize(int, int, int, int)
+	 */
+	public static Bitmap loadLocalBitmap(final String filename, final Context context,
+			int maxWidth, int maxHeight)
 	{
 		try
 		{
-			FileInputStream is = filename.contains("/") ? new FileInputStream(
-					filename) : context.openFileInput(filename);
-			BufferedInputStream bis = new BufferedInputStream(is, 8);
-			Bitmap bm = BitmapFactory.decodeStream(bis);
-			bis.close();
-			return bm;
+			return decodeSampled(new StreamSource()
+			{
+				public InputStream open() throws IOException
+				{
+					return filename.contains("/") ? new FileInputStream(filename) : context
+							.openFileInput(filename);
+				}
+			}, maxWidth, maxHeight);
 		} catch (FileNotFoundException e)
 		{
 			Log.w(TAG, "loadLocalBitmap: File " + filename
@@ -208,11 +249,28 @@ public class ImageHandling
 	 * @return a Bitmap representing the content of the URI.
 	 */
 	public static Bitmap loadBitmapFromContentUri(ContentResolver contentResolver, Uri uri) {
+		return loadBitmapFromContentUri(contentResolver, uri, Integer.MAX_VALUE, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Loads a Bitmap specified by a given URI, scaled down while decoding if
+	 * it is a lot larger than needed.
+	 * @param contentResolver The contentResolver to resolve the URI.
+	 * @param uri The URI to resolve. Must start with content://
+	 * @param maxWidth Width of the area the image is shown in
+	 * @param maxHeight Height of the area the image is shown in
+	 * @return a Bitmap representing the content of the URI, null if it cannot be read.
+	 * @see #computeSampleSize(int, int, int, int)
+	 */
+	public static Bitmap loadBitmapFromContentUri(final ContentResolver contentResolver,
+			final Uri uri, int maxWidth, int maxHeight) {
 		Bitmap photo =  null;
 		try {
-			BufferedInputStream bis = new BufferedInputStream(contentResolver.openInputStream(uri));
-			photo = BitmapFactory.decodeStream(bis);
-			bis.close();
+			photo = decodeSampled(new StreamSource() {
+				public InputStream open() throws IOException {
+					return contentResolver.openInputStream(uri);
+				}
+			}, maxWidth, maxHeight);
 		} catch (Exception e) {
 			if (DEBUG)
 				Log.e(TAG, "loadPhotoFromUri: " + e.getMessage());
@@ -220,6 +278,72 @@ public class ImageHandling
 	    return photo;
 	}
 
+	/**
+	 * Opens the same image again for each pass of decodeSampled().
+	 */
+	private interface StreamSource
+	{
+		InputStream open() throws IOException;
+	}
+
+	/**
+	 * Decodes an image in two passes: the first one only reads its size, which
+	 * is used to choose the sample size for the second one. JPEGs are decoded
+	 * without alpha channel, which needs half the memory.
+	 *
+	 * @return The image or null if it cannot be decoded
+	 */
+	private static Bitmap decodeSampled(StreamSource source, int maxWidth, int maxHeight)
+			throws IOException
+	{
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		InputStream in = new BufferedInputStream(source.open(), DECODE_BUFFER_SIZE);
+		try
+		{
+			BitmapFactory.decodeStream(in, null, options);
+		} finally
+		{
+			in.close();
+		}
+		if (options.outWidth <= 0 || options.outHeight <= 0)
+			return null;
+
+		options.inJustDecodeBounds = false;
+		options.inSampleSize = computeSampleSize(options.outWidth, options.outHeight,
+				maxWidth, maxHeight);
+		options.inPreferredConfig = "image/jpeg".equals(options.outMimeType) ? Bitmap.Config.RGB_565
+				: Bitmap.Config.ARGB_8888;
+		in = new BufferedInputStream(source.open(), DECODE_BUFFER_SIZE);
+		try
+		{
+			return BitmapFactory.decodeStream(in, null, options);
+		} finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * Chooses how much to scale down an image while decoding. The decoder
+	 * only scales by powers of two, so the largest power of two is chosen
+	 * which keeps the image at least as large as its size when scaled to fit
+	 * into maxWidth x maxHeight.
+	 *
+	 * @return The sample size for BitmapFactory.Options.inSampleSize
+	 */
+	static int computeSampleSize(int width, int height, int maxWidth, int maxHeight)
+	{
+		maxWidth = Math.max(1, maxWidth);
+		maxHeight = Math.max(1, maxHeight);
+		int sampleSize = 1;
+		// fitting is limited by one of the dimensions, which must not become
+		// smaller than the area
+		while (width / (sampleSize * 2) >= maxWidth || height / (sampleSize * 2) >= maxHeight)
+			sampleSize *= 2;
+		return sampleSize;
+	}
+
 	/**
 	 * Code provided by Google
 	 * @see http://code.google.com/p/android/issues/detail?id=6066
@@ -249,45 +373,6 @@ public class ImageHandling
 	    }
 	}
 
-	/**
-	 * Downloads an image from the given URL and returns it as a bitmap.
-	 *
-	 * @param url
-	 *            The URL for the image
-	 * @return The image as a Bitmap.
-	 */
-	public static Bitmap retrieveWebBitmap(String url)
-	{
-		try
-		{
-			URL imageUrl = new URL(url);
-			InputStream is = imageUrl.openStream();
-			BufferedInputStream bis = new BufferedInputStream(is, 8);
-			// FlushedInputStream is a workaround for
-			// http://code.google.com/p/android/issues/detail?id=6066
-			Bitmap bm = BitmapFactory.decodeStream(new FlushedInputStream(bis));
-			bis.close();
-			is.close();
-			return bm;
-		} catch (MalformedURLException e)
-		{
-			if (DEBUG)
-			{
-				Log.w(TAG, "Given file URL \"" + url
-								+ "\"is invalid.");
-				Log.w(TAG, Log.getStackTraceString(e));
-			}
-		} catch (IOException e)
-		{
-			if (DEBUG)
-			{
-				Log.w(TAG, "IOException in retrieveWebBitmap");
-				Log.w(TAG, Log.getStackTraceString(e));
-			}
-		}
-		return null;
-	}
-
 	/**
 	 * Retrieves a unique, unused filename based on the desired filename. Only
 	 * works for local file names.
@@ -427,11 +512,14 @@ public class ImageHandling
 			if (DEBUG)
 				Log.d(TAG, "Search complete. Fetching images.");
 			this.imageHandler.requestedCount = urls.size();
-			for (String url : urls)
+			for (int i = 0; i < urls.size(); i++)
 			{
-				DownloadImageTask dl = new DownloadImageTask(this.imageHandler, url);
-				ImageHandling.this.imageDownloadTasks.add(dl);
-				dl.execute((ImageHandling.Params)null);
+				// the first result is shown first
+				DownloadCallback callback = new DownloadCallback();
+				callback.download = sDownloads.submit(urls.get(i),
+						i == 0 ? ImageDownloadScheduler.PRIORITY_VISIBLE
+								: ImageDownloadScheduler.PRIORITY_PREFETCH, callback);
+				ImageHandling.this.imageDownloads.add(callback.download);
 			}
 			if (urls.size() == 0)
 				imageDownloadCompleteCallback.action(null);
@@ -439,42 +527,22 @@ public class ImageHandling
 	}
 
 	/**
-	 * Task for downloading exactly one Bitmap.
+	 * Receives exactly one downloaded Bitmap.
 	 */
-	private class DownloadImageTask extends AsyncTask<Params, Void, Bitmap>
+	private class DownloadCallback implements ImageDownloadScheduler.Callback
 	{
-		String mUrl;
-		ImageHandling mIh;
-		DownloadImageTask(ImageHandling ih, String url)
-		{
-			mUrl = url;
-			mIh = ih;
-		}
-
-		@Override
-		protected Bitmap doInBackground(Params... params)
-		{
-			final Bitmap b = ImageHandling.retrieveWebBitmap(mUrl);
-			if (b != null)
-			{
-				if (DEBUG)
-					Log.v(TAG, "Successful: " + mUrl);
-			} else
-			if (DEBUG)
-				Log.w(TAG, "Failed to retrieve " + mUrl);
-			return b;
-		}
+		// set right after submitting, before the result can arrive
+		ImageDownloadScheduler.Download download;
 
-		@Override
-		protected void onPostExecute(Bitmap result)
+		public void downloaded(Bitmap result)
 		{
 			if (DEBUG)
 			{
 				if (result==null)
 					Log.d(TAG, "returned Bitmap is null in dl-thread");
 			}
-			ImageHandling.this.imageDownloadTasks.remove(DownloadImageTask.this);
-			mIh.addBitmap(result);
+			ImageHandling.this.imageDownloads.remove(download);
+			addBitmap(result);
 		}
 	}
 
@@ -540,6 +608,8 @@ public class ImageHandling
 		try
 		{
 			name = uniqueFilename("image.png", context);
+			// the name may have been used by a deleted image before
+			BitmapCache.getInstance(context).invalidate(name);
 			fOut = context.openFileOutput(name, 1);
 		} catch (FileNotFoundException e)
 		{
@@ -547,6 +617,8 @@ public class ImageHandling
 		}
 
 		bitmap.compress(Bitmap.CompressFormat.PNG, 100, fOut);
+		// the lists then only have to read these small files
+		BitmapCache.getInstance(context).createThumbnails(name, bitmap);
 
 		try
 		{
@@ -606,20 +678,13 @@ public class ImageHandling
 			searchTask.cancel(true);
 			searchTask = null;
 		}
-		try{
-		for (DownloadImageTask t:imageDownloadTasks)
-		{
-			if (DEBUG)
-				Log.d(TAG,"Cancelling Thread");
-			t.cancel(true);
-		}
-		}
-		catch (SecurityException e)
+		for (ImageDownloadScheduler.Download d:imageDownloads)
 		{
 			if (DEBUG)
-				Log.d(TAG,"Security Exception: " + e.getMessage());
+				Log.d(TAG,"Cancelling download");
+			d.cancel();
 		}
-		imageDownloadTasks.clear();
+		imageDownloads.clear();
 	}
 
 }
@@ -0,0 +1,119 @@
+/*
+ *  Copyright (C) 2011 Sebastian Dörner
+ *
+ *  This file is part of Mango.
+ *
+ *  Mango is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Mango is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Mango.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package de.mango.business;
+
+/**
+ * Map from long keys to int values, stored in two plain arrays with open
+ * addressing. Unlike a HashMap<Long, Integer> it does not create any objects
+ * per entry, which matters for maps over all goals.
+ *
+ * Entries cannot be removed.
+ */
+class LongIntHashMap
+{
+	// returned by get() for missing keys
+	static final int NOT_FOUND = -1;
+
+	private long[] mKeys;
+	private int[] mValues;
+	private boolean[] mUsed;
+	private int mSize = 0;
+
+	/**
+	 * @param expectedSize
+	 *            Number of entries the map should hold without growing
+	 */
+	LongIntHashMap(int expectedSize)
+	{
+		// keep the table at most half full, probe sequences stay short then
+		int capacity = 4;
+		while (capacity < expectedSize * 2)
+			capacity <<= 1;
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity)
+	{
+		mKeys = new long[capacity];
+		mValues = new int[capacity];
+		mUsed = new boolean[capacity];
+	}
+
+	int size()
+	{
+		return mSize;
+	}
+
+	/**
+	 * @return The value of the key or {@link #NOT_FOUND}
+	 */
+	int get(long key)
+	{
+		final int mask = mKeys.length - 1;
+		for (int i = hash(key) & mask; mUsed[i]; i = (i + 1) & mask)
+			if (mKeys[i] == key)
+				return mValues[i];
+		return NOT_FOUND;
+	}
+
+	/**
+	 * Sets the value of a key, replacing a previous value.
+	 */
+	void put(long key, int value)
+	{
+		if ((mSize + 1) * 2 > mKeys.length)
+			grow();
+		final int mask = mKeys.length - 1;
+		int i = hash(key) & mask;
+		while (mUsed[i])
+		{
+			if (mKeys[i] == key)
+			{
+				mValues[i] = value;
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+		mUsed[i] = true;
+		mKeys[i] = key;
+		mValues[i] = value;
+		mSize++;
+	}
+
+	private void grow()
+	{
+		final long[] keys = mKeys;
+		final int[] values = mValues;
+		final boolean[] used = mUsed;
+		allocate(keys.length * 2);
+		mSize = 0;
+		for (int i = 0; i < keys.length; i++)
+			if (used[i])
+				put(keys[i], values[i]);
+	}
+
+	private static int hash(long key)
+	{
+		// ids are mostly consecutive, spread them over the table
+		final long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
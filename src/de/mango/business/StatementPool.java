@@ -0,0 +1,88 @@
+/*
+ *  Copyright (C) 2011 Sebastian Dörner
+ *
+ *  This file is part of Mango.
+ *
+ *  Mango is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Mango is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Mango.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package de.mango.business;
+
+import java.util.HashMap;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Pool of compiled statements with bound parameters. Each SQL string is
+ * compiled once on first use and then reused until the pool is closed, so
+ * SQLite does not have to parse and plan it again on every call.
+ */
+class StatementPool
+{
+	private final SQLiteDatabase mDb;
+	private final HashMap<String, SQLiteStatement> mStatements = new HashMap<String, SQLiteStatement>();
+	// number of times a compiled statement has been reused
+	private int mPreparesAvoided = 0;
+
+	StatementPool(SQLiteDatabase db)
+	{
+		mDb = db;
+	}
+
+	/**
+	 * Gets the compiled statement for the given SQL, compiling it if this is
+	 * the first use. Bindings of earlier uses are cleared.
+	 *
+	 * @param sql
+	 *            SQL with ? for all parameters. Must not contain any values,
+	 *            or the pool fills up with one-off statements.
+	 * @return The compiled statement
+	 */
+	SQLiteStatement get(String sql)
+	{
+		SQLiteStatement statement = mStatements.get(sql);
+		if (statement == null)
+		{
+			statement = mDb.compileStatement(sql);
+			mStatements.put(sql, statement);
+		}
+		else
+		{
+			statement.clearBindings();
+			mPreparesAvoided++;
+		}
+		return statement;
+	}
+
+	/**
+	 * @return How many times a statement has been reused instead of being
+	 *         compiled again.
+	 */
+	int getPreparesAvoided()
+	{
+		return mPreparesAvoided;
+	}
+
+	/**
+	 * Releases all compiled statements.
+	 */
+	void close()
+	{
+		for (SQLiteStatement statement : mStatements.values())
+			statement.close();
+		mStatements.clear();
+	}
+}
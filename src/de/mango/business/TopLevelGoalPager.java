@@ -0,0 +1,297 @@
+/*
+ *  Copyright (C) 2011 Sebastian Dörner
+ *
+ *  This file is part of Mango.
+ *
+ *  Mango is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Mango is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Mango.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package de.mango.business;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * Window over the top level goals in id order for list adapters. Goals are
+ * read from the database in pages in the background when they are first
+ * asked for, and only the most recently used pages are kept, so memory use
+ * does not grow with the number of goals. Until a page has arrived, its goals
+ * are returned as null, so the adapter can show placeholders.
+ *
+ * A page is read after the last id of the page before it whenever that id is
+ * known, which is always the case when scrolling from the top.
+ *
+ * The goals are counted once, afterwards the count is kept up to date from
+ * the changes reported to the adapter.
+ *
+ * Not thread-safe, use it from the UI thread only.
+ */
+public class TopLevelGoalPager
+{
+	public static final int DEFAULT_PAGE_SIZE = 24;
+	private static final int MAX_PAGES = 4;
+
+	/**
+	 * Interface for being notified when the count or a page has arrived.
+	 */
+	public interface Listener
+	{
+		/**
+		 * Called on the UI thread, the adapter should redraw its views.
+		 */
+		public void onPagerChanged();
+	}
+
+	private final AsyncGoalProvider mProvider;
+	private final int mPageSize;
+	private final Listener mListener;
+	// -1 if not counted yet
+	private int mCount = -1;
+	// number of the latest count request, results of earlier ones are dropped
+	private int mCountRequests = 0;
+	private boolean mCounting = false;
+	// loaded pages by page number, least recently used first
+	private final LinkedHashMap<Integer, ArrayList<GoalSummary>> mPages = new LinkedHashMap<Integer, ArrayList<GoalSummary>>(
+			MAX_PAGES + 1, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, ArrayList<GoalSummary>> eldest)
+		{
+			return size() > MAX_PAGES;
+		}
+	};
+	// pages being read by page number
+	private final HashMap<Integer, PageLoad> mLoading = new HashMap<Integer, PageLoad>();
+	// id of the last goal of every page read so far, also of evicted pages
+	private final HashMap<Integer, Long> mLastIds = new HashMap<Integer, Long>();
+
+	/**
+	 * @param gp
+	 *            The provider to read from
+	 * @param pageSize
+	 *            Number of goals read at once, should be at least the number
+	 *            of goals visible on the screen
+	 * @param listener
+	 *            Notified whenever the count or a page has arrived
+	 */
+	public TopLevelGoalPager(GoalProvider gp, int pageSize, Listener listener)
+	{
+		mProvider = new AsyncGoalProvider(gp);
+		mPageSize = pageSize;
+		mListener = listener;
+	}
+
+	/**
+	 * @return The number of goals, 0 until they have been counted for the
+	 *         first time.
+	 */
+	public int getCount()
+	{
+		if (mCount == -1 && !mCounting)
+			count();
+		return mCount == -1 ? 0 : mCount;
+	}
+
+	/**
+	 * Counts the goals in the background, dropping a count already on its
+	 * way.
+	 */
+	private void count()
+	{
+		mCounting = true;
+		final int request = ++mCountRequests;
+		mProvider.getNumTopLevelGoals(new GoalProviderCallback<Integer>()
+		{
+			public void action(Integer count)
+			{
+				if (request != mCountRequests)
+					return;
+				mCounting = false;
+				mCount = count;
+				mListener.onPagerChanged();
+			}
+		});
+	}
+
+	/**
+	 * @return The goal at the position or null if it has not been read yet or
+	 *         the position is past the last goal.
+	 */
+	public GoalSummary get(int position)
+	{
+		final int page = position / mPageSize;
+		ArrayList<GoalSummary> goals = mPages.get(page);
+		if (goals == null)
+		{
+			if (!mLoading.containsKey(page))
+				load(page);
+			return null;
+		}
+		final int index = position % mPageSize;
+		return index < goals.size() ? goals.get(index) : null;
+	}
+
+	private void load(int page)
+	{
+		PageLoad load = new PageLoad(page);
+		mLoading.put(page, load);
+		Long afterId = page == 0 ? Long.valueOf(-1) : mLastIds.get(page - 1);
+		load.mFuture = afterId != null ? mProvider.getTopLevelGoalSummariesAfter(afterId,
+				mPageSize, load) : mProvider.getTopLevelGoalSummariesAt(page * mPageSize,
+				mPageSize, load);
+	}
+
+	/**
+	 * Read of a single page, whose result is dropped if the page has been
+	 * forgotten in the meantime.
+	 */
+	private class PageLoad implements GoalProviderCallback<ArrayList<GoalSummary>>
+	{
+		final int mPage;
+		Future<?> mFuture;
+
+		PageLoad(int page)
+		{
+			mPage = page;
+		}
+
+		public void action(ArrayList<GoalSummary> goals)
+		{
+			if (mLoading.get(mPage) != this)
+				return;
+			mLoading.remove(mPage);
+			mPages.put(mPage, goals);
+			if (!goals.isEmpty())
+				mLastIds.put(mPage, goals.get(goals.size() - 1).getId());
+			mListener.onPagerChanged();
+		}
+	}
+
+	/**
+	 * Takes note of a new top level goal. New goals have the highest id, so
+	 * only the last page changes.
+	 */
+	public void inserted()
+	{
+		if (mCounting)
+		{
+			// the count on its way may or may not include the new goal
+			count();
+			return;
+		}
+		if (mCount == -1)
+			return;
+		forgetPagesFrom(mCount / mPageSize);
+		mCount++;
+	}
+
+	/**
+	 * Takes note of a changed top level goal. Its page is read again on next
+	 * access.
+	 */
+	public void updated(long goalId)
+	{
+		int page = pageOf(goalId);
+		// the position does not change, and neither does the id at the end
+		if (page != -1)
+			mPages.remove(page);
+		else
+			// the goal may be in a page on its way
+			cancelLoads(0);
+	}
+
+	/**
+	 * Takes note of a deleted top level goal. All goals after it move up one
+	 * position, so its page and all pages after it are read again.
+	 */
+	public void deleted(long goalId)
+	{
+		int page = pageOf(goalId);
+		if (page == -1)
+		{
+			reset();
+			return;
+		}
+		forgetPagesFrom(page);
+		if (mCounting)
+			count();
+		else if (mCount != -1)
+			mCount--;
+	}
+
+	/**
+	 * Forgets all goals and counts them again, e.g. after an import. The old
+	 * count is kept until the new one has arrived.
+	 */
+	public void reset()
+	{
+		forgetPagesFrom(0);
+		count();
+	}
+
+	/**
+	 * Drops all pages on their way, e.g. when the adapter is closed.
+	 */
+	public void cancelAll()
+	{
+		mProvider.cancelAll();
+		mLoading.clear();
+		mCounting = false;
+		mCountRequests++;
+	}
+
+	private void forgetPagesFrom(int firstPage)
+	{
+		for (Iterator<Integer> it = mPages.keySet().iterator(); it.hasNext();)
+			if (it.next() >= firstPage)
+				it.remove();
+		for (Iterator<Integer> it = mLastIds.keySet().iterator(); it.hasNext();)
+			if (it.next() >= firstPage)
+				it.remove();
+		cancelLoads(firstPage);
+	}
+
+	private void cancelLoads(int firstPage)
+	{
+		for (Iterator<PageLoad> it = mLoading.values().iterator(); it.hasNext();)
+		{
+			PageLoad load = it.next();
+			if (load.mPage >= firstPage)
+			{
+				load.mFuture.cancel(false);
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * @return The number of the loaded page containing the goal, -1 if it is
+	 *         in none of them.
+	 */
+	private int pageOf(long goalId)
+	{
+		for (Map.Entry<Integer, ArrayList<GoalSummary>> entry : mPages.entrySet())
+			for (GoalSummary g : entry.getValue())
+				if (g.getId() == goalId)
+					return entry.getKey();
+		return -1;
+	}
+}
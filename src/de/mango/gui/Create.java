@@ -46,8 +46,10 @@ import android.widget.RadioGroup;
 import android.widget.RelativeLayout;
 import android.widget.Toast;
 import de.mango.R;
+import de.mango.business.AsyncGoalProvider;
 import de.mango.business.Goal;
 import de.mango.business.GoalProvider;
+import de.mango.business.GoalProviderCallback;
 import de.mango.business.ImageHandling;
 
 public class Create extends Activity implements OnClickListener
@@ -65,6 +67,7 @@ public class Create extends Activity implements OnClickListener
 	long parentId; //id of the parent of the goal to be created, -1 if new TLG
 	Goal g = null;
 	GoalProvider goalProvider;
+	AsyncGoalProvider asyncGoalProvider;
 
 	/*
 	 * (non-Javadoc)
@@ -72,12 +75,13 @@ public class Create extends Activity implements OnClickListener
 	 * @see android.app.Activity#onCreate(android.os.Bundle)
 	 */
 	@Override
-	public void onCreate(Bundle savedInstanceState)
+	public void onCreate(final Bundle savedInstanceState)
 	{
 
 		super.onCreate(savedInstanceState);
 		setContentView(de.mango.R.layout.create);
-		goalProvider = new GoalProvider(this);
+		goalProvider = GoalProvider.acquire(this);
+		asyncGoalProvider = new AsyncGoalProvider(goalProvider);
 
 
 		DatePicker date = (DatePicker) findViewById(R.create.deadlineDatePicker);
@@ -100,8 +104,6 @@ public class Create extends Activity implements OnClickListener
 		Button cancel = (Button) findViewById(R.create.cancelButton);
 		cancel.setOnClickListener(this);
 
-		HorizontalSlide progress = (HorizontalSlide) findViewById(R.create.progressBar);
-
 		// Check if a new goal will be created or an existing goal will be
 		// modified
 		modify = getIntent().getBooleanExtra("modify", false);
@@ -112,60 +114,94 @@ public class Create extends Activity implements OnClickListener
 		if (modify)
 		{
 			long goalId = getIntent().getLongExtra("goalId", -1);
-			g = goalProvider.getGoalWithId(goalId);
-			if (g == null)
-			{
-				setResult(RESULT_CANCELED);
-				finish();
-			}
-			else
+			// nothing to save until the goal is there
+			save.setEnabled(false);
+			asyncGoalProvider.getGoalWithId(goalId, new GoalProviderCallback<Goal>()
 			{
-				progress.setModifiable(!goalProvider.hasChildren(goalId));
-				progress.setProgress(g.getCompletion());
-
-				EditText text = (EditText) findViewById(R.create.nameEditField);
-				text.setText(g.getName());
-
-				text = (EditText) findViewById(R.create.descriptionEditField);
-				text.setText(g.getDescription());
-
-				RadioGroup rgroup = (RadioGroup) findViewById(R.create.weightRadioGroup);
-				switch (g.getCompletionWeight())
+				public void action(Goal goal)
 				{
-				case 1:
-					rgroup.check(R.create.weightRadioButtonLow);
-					break;
-				case 2:
-					rgroup.check(R.create.weightRadioButtonMedium);
-					break;
-				case 3:
-					rgroup.check(R.create.weightRadioButtonHigh);
-					break;
+					if (goal == null)
+					{
+						setResult(RESULT_CANCELED);
+						finish();
+					}
+					else
+						showGoal(goal, savedInstanceState);
 				}
-
-				GregorianCalendar deadline = g.getDeadline();
-				if (savedInstanceState==null)
-					date.updateDate(deadline.get(Calendar.YEAR), deadline.get(Calendar.MONTH), deadline
-							.get(Calendar.DAY_OF_MONTH));
-
-				if (goalImage==null && !g.getImageName().equals(""))
-					goalImage = ImageHandling.loadLocalBitmap(g.getImageName(), this);
-
-				save.setText(getResources().getString(R.string.Button_modify));
-			}
+			});
+			save.setText(getResources().getString(R.string.Button_modify));
 		}
 		else
 		{
 			parentId = getIntent().getLongExtra("parentId", -1);
 		}
 		if (goalImage != null)
+			showImage();
+	}
+
+	/**
+	 * Fills the input fields with the goal to be modified.
+	 *
+	 * @param savedInstanceState
+	 *            If not null, the fields have been restored from it already
+	 *            and are kept
+	 */
+	private void showGoal(Goal goal, Bundle savedInstanceState)
+	{
+		g = goal;
+		HorizontalSlide progress = (HorizontalSlide) findViewById(R.create.progressBar);
+		progress.setModifiable(g.getChildCount() == 0);
+		progress.setProgress(g.getCompletion());
+
+		if (savedInstanceState == null)
+		{
+			EditText text = (EditText) findViewById(R.create.nameEditField);
+			text.setText(g.getName());
+
+			text = (EditText) findViewById(R.create.descriptionEditField);
+			text.setText(g.getDescription());
+
+			RadioGroup rgroup = (RadioGroup) findViewById(R.create.weightRadioGroup);
+			switch (g.getCompletionWeight())
+			{
+			case 1:
+				rgroup.check(R.create.weightRadioButtonLow);
+				break;
+			case 2:
+				rgroup.check(R.create.weightRadioButtonMedium);
+				break;
+			case 3:
+				rgroup.check(R.create.weightRadioButtonHigh);
+				break;
+			}
+
+			GregorianCalendar deadline = g.getDeadline();
+			DatePicker date = (DatePicker) findViewById(R.create.deadlineDatePicker);
+			date.updateDate(deadline.get(Calendar.YEAR), deadline.get(Calendar.MONTH), deadline
+					.get(Calendar.DAY_OF_MONTH));
+		}
+
+		if (goalImage==null && !g.getImageName().equals(""))
 		{
-			ImageButton iv = (ImageButton) findViewById(R.create.imagebutton);
-			iv.setImageBitmap(goalImage);
-			RelativeLayout.LayoutParams params = (RelativeLayout.LayoutParams) iv
-					.getLayoutParams();
-			params.height = goalImage.getHeight() > 218 ? 218 : LayoutParams.WRAP_CONTENT;
+			goalImage = ImageHandling.loadLocalBitmap(g.getImageName(), this,
+					ImageHandling.GOAL_IMAGE_SIZE, ImageHandling.GOAL_IMAGE_SIZE);
+			if (goalImage != null)
+				showImage();
 		}
+
+		findViewById(R.create.saveButton).setEnabled(true);
+	}
+
+	/**
+	 * Shows goalImage on the image button.
+	 */
+	private void showImage()
+	{
+		ImageButton iv = (ImageButton) findViewById(R.create.imagebutton);
+		iv.setImageBitmap(goalImage);
+		RelativeLayout.LayoutParams params = (RelativeLayout.LayoutParams) iv
+				.getLayoutParams();
+		params.height = goalImage.getHeight() > 218 ? 218 : LayoutParams.WRAP_CONTENT;
 	}
 
 	@Override
@@ -252,15 +288,9 @@ public class Create extends Activity implements OnClickListener
 		// insert image chosen in Picture Activity
 		if (resultCode == RESULT_OK)
 		{
-			ImageButton iv = (ImageButton) findViewById(R.create.imagebutton);
 			goalImage = (Bitmap) data.getExtras().get("image");
 			if (goalImage != null)
-			{
-				iv.setImageBitmap(goalImage);
-				RelativeLayout.LayoutParams params = (RelativeLayout.LayoutParams) iv
-						.getLayoutParams();
-				params.height = goalImage.getHeight() > 218 ? 218 : LayoutParams.WRAP_CONTENT;
-			}
+				showImage();
 		}
 	}
 
@@ -347,15 +377,16 @@ public class Create extends Activity implements OnClickListener
 			goal.setImageName(ImageHandling.saveLocalBitmap(this, goalImage));
 		}
 
-		// insert goal into tree
+		// insert goal into tree, the write is done even after the Activity
+		// has gone and reads started later wait for it
 		if (modify)
 		{
-			goalProvider.updateGoal(goal.getId(), goal);
+			asyncGoalProvider.updateGoal(goal.getId(), goal, null);
 			setResult(RESULT_MODIFIED);
 		}
 		else
 		{
-			goalProvider.insertGoal(goal, parentId);
+			asyncGoalProvider.insertGoal(goal, parentId, null);
 			setResult(RESULT_CREATED);
 		}
 		finish();
@@ -364,7 +395,8 @@ public class Create extends Activity implements OnClickListener
 	@Override
 	protected void onDestroy()
 	{
-		goalProvider.close();
+		asyncGoalProvider.cancelAll();
+		goalProvider.release();
 		super.onDestroy();
 	}
 }
@@ -37,15 +37,22 @@ import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 import de.mango.R;
+import de.mango.business.AsyncGoalProvider;
+import de.mango.business.AsyncImageBinder;
+import de.mango.business.BitmapCache;
+import de.mango.business.CompletionWriteQueue;
 import de.mango.business.Goal;
+import de.mango.business.GoalChangeListener;
 import de.mango.business.GoalProvider;
+import de.mango.business.GoalProviderCallback;
+import de.mango.business.GoalSummary;
 import de.mango.business.ImageHandling;
 
 /**
  * Activity showing the details of a Goal. All Children are shown as pictures
  * and accessible through these. Progress is the only changeable property.
  */
-public class Detail extends Activity implements OnClickListener
+public class Detail extends Activity implements OnClickListener, GoalChangeListener
 {
 	public static final int RESULT_TOP_LEVEL_GOALS_CHANGED = RESULT_FIRST_USER;
 	/**
@@ -61,6 +68,14 @@ public class Detail extends Activity implements OnClickListener
 	 * Children of the currently shown goal in presented order.
 	 */
 	private GoalProvider goalProvider;
+	private AsyncGoalProvider asyncGoalProvider;
+	private CompletionWriteQueue completionWriteQueue;
+	// shows the images of the children
+	private AsyncImageBinder<ImageButton> childImageBinder;
+	// number of the latest refresh of the goal and of its children, results
+	// of earlier ones are dropped
+	private int goalRequests = 0;
+	private int childrenRequests = 0;
 
 	// widgets for later access
 	private TextView nameTextView;
@@ -74,71 +89,155 @@ public class Detail extends Activity implements OnClickListener
 	 * @see android.app.Activity#onCreate(android.os.Bundle)
 	 */
 	@Override
-	public void onCreate(Bundle savedInstanceState)
+	public void onCreate(final Bundle savedInstanceState)
 	{
 		// init dialog
 		super.onCreate(savedInstanceState);
 		setContentView(de.mango.R.layout.detail);
 		subgoalsLayout = (ViewGroup) findViewById(R.detail.subgoalsLayout);
 		setResult(RESULT_CANCELED);
-		goalProvider = new GoalProvider(this);
+		goalProvider = GoalProvider.acquire(this);
+		asyncGoalProvider = new AsyncGoalProvider(goalProvider);
+		completionWriteQueue = new CompletionWriteQueue(asyncGoalProvider);
+		final Bitmap noPic = ImageHandling.resizeBitmap(BitmapFactory.decodeResource(
+				getResources(), R.drawable.nopic), 40, 40);
+		childImageBinder = new AsyncImageBinder<ImageButton>(this, BitmapCache.SIZE_DETAIL)
+		{
+			@Override
+			protected void setImage(ImageButton view, Bitmap image)
+			{
+				view.setImageBitmap(image != null ? ImageHandling.resizeBitmap(image, 40, 40)
+						: noPic);
+			}
+		};
+
+		nameTextView = (TextView) findViewById(R.detail.name);
+		completionTextView = (TextView) findViewById(R.detail.completion);
+		progress = (HorizontalSlide) findViewById(R.detail.progress);
+		changeProgress = (Button) findViewById(R.detail.progressChangeButton);
+		changeProgress.setOnClickListener(this);
+		// shown once the goal is there and turns out to have no children
+		changeProgress.setVisibility(View.INVISIBLE);
 
 		// get and check goal to be shown
 		Intent i = getIntent();
 		final long id = i.getLongExtra("goalId", -1);
 		if (id == -1) {
 			finish();
+			return;
 		}
-		goal = goalProvider.getGoalWithId(id);
-		if (goal==null)
-			finish();
-		else
+		asyncGoalProvider.getGoalWithId(id, new GoalProviderCallback<Goal>()
 		{
-			// load goal information
-			TextView text = (TextView) findViewById(R.detail.name);
-			text.setText(goal.getName());
-			text.setBackgroundColor(getResources().getColor(
-					goal.getCompletionColor()));
-			this.nameTextView = text;
-
-			text = (TextView) findViewById(R.detail.deadline);
-			text.setText(goal.getFormattedDeadline());
+			public void action(Goal g)
+			{
+				if (g == null)
+					finish();
+				else
+					showGoal(g, savedInstanceState);
+			}
+		});
+	}
 
-			completionTextView = (TextView) findViewById(R.detail.completion);
-			displayProgress(goal.getCompletion());
+	/**
+	 * Fills the views with the loaded goal and starts listening for changes.
+	 *
+	 * @param savedInstanceState
+	 *            State to restore the progress slide from, may be null
+	 */
+	private void showGoal(Goal g, Bundle savedInstanceState)
+	{
+		goal = g;
+		// load goal information
+		nameTextView.setText(goal.getName());
+		nameTextView.setBackgroundColor(getResources().getColor(
+				goal.getCompletionColor()));
 
-			text = (TextView) findViewById(R.detail.description);
-			text.setText(goal.getDescription());
+		TextView text = (TextView) findViewById(R.detail.deadline);
+		text.setText(goal.getFormattedDeadline());
 
-			progress = (HorizontalSlide) findViewById(R.detail.progress);
-			changeProgress = (Button) findViewById(R.detail.progressChangeButton);
-			changeProgress.setOnClickListener(this);
+		displayProgress(goal.getCompletion());
 
-			if (savedInstanceState!=null && savedInstanceState.getBoolean("ChangeButtonPressed"))
-			{
-				progress.setModifiable(true);
-				progress.setProgress(savedInstanceState.getInt("currentProgress"));
-				changeProgress.setText(R.string.Button_accept);
-			}
-			else
-			{
-				progress.setModifiable(false);
-				progress.setProgress(goal.getCompletion());
-			}
+		text = (TextView) findViewById(R.detail.description);
+		text.setText(goal.getDescription());
 
+		if (savedInstanceState!=null && savedInstanceState.getBoolean("ChangeButtonPressed"))
+		{
+			progress.setModifiable(true);
+			progress.setProgress(savedInstanceState.getInt("currentProgress"));
+			changeProgress.setText(R.string.Button_accept);
+		}
+		else
+		{
+			progress.setModifiable(false);
+			progress.setProgress(goal.getCompletion());
+		}
 
-			if (goalProvider.hasChildren(goal.getId()))
-				changeProgress.setVisibility(View.INVISIBLE);
+		if (goal.getChildCount() == 0)
+			changeProgress.setVisibility(View.VISIBLE);
+
+		ImageView iv = (ImageView) findViewById(R.detail.image);
+		iv.setImageBitmap((goal.getImageName().equals("")) ? BitmapFactory
+				.decodeResource(getResources(), R.drawable.nopic)
+				: ImageHandling.loadLocalBitmap(goal.getImageName(), this,
+						ImageHandling.GOAL_IMAGE_SIZE, ImageHandling.GOAL_IMAGE_SIZE));
+		// draw picture for each child
+		loadChildren();
+		goalProvider.addChangeListener(this);
+	}
 
-			ImageView iv = (ImageView) findViewById(R.detail.image);
-			iv.setImageBitmap((goal.getImageName().equals("")) ? BitmapFactory
-					.decodeResource(getResources(), R.drawable.nopic)
-					: ImageHandling.loadLocalBitmap(goal.getImageName(), this));
-			// draw picture for each child
-			drawChildren();
+	/**
+	 * Shows changes of the goal and its children.
+	 */
+	public void onGoalChanged(int type, long goalId, long parentId)
+	{
+		// the number of children of the goal may have changed as well
+		if (type == RELOAD || goalId == goal.getId() || parentId == goal.getId())
+		{
+			final boolean childrenChanged = type == RELOAD || parentId == goal.getId();
+			final int request = ++goalRequests;
+			asyncGoalProvider.getGoalWithId(goal.getId(), new GoalProviderCallback<Goal>()
+			{
+				public void action(Goal g)
+				{
+					// a later refresh is on its way
+					if (request != goalRequests)
+						return;
+					if (g == null)
+					{
+						finish();
+						return;
+					}
+					goal = g;
+					nameTextView.setBackgroundColor(getResources().getColor(
+							goal.getCompletionColor()));
+					displayProgress(goal.getCompletion());
+					// don't interfere with the user dragging the slide
+					if (!progress.isModifiable())
+						progress.setProgress(goal.getCompletion());
+					if (childrenChanged)
+					{
+						changeProgress.setVisibility(goal.getChildCount() > 0 ? View.INVISIBLE
+								: View.VISIBLE);
+						loadChildren();
+					}
+				}
+			});
 		}
 	}
 
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see android.app.Activity#onPause()
+	 */
+	@Override
+	protected void onPause()
+	{
+		// don't lose queued progress changes if the Activity is left
+		completionWriteQueue.flush();
+		super.onPause();
+	}
+
 	@Override
 	protected void onSaveInstanceState(Bundle outState)
 	{
@@ -172,8 +271,9 @@ public class Detail extends Activity implements OnClickListener
 				// Accept new Progress
 				progress.setModifiable(false);
 				changeButton.setText(R.string.Button_change);
-				// change data
-				goalProvider.updateGoalCompletion(goal.getId(), progress.getProgress());
+				// change data, queued to be written together with further
+				// changes
+				completionWriteQueue.updateGoalCompletion(goal.getId(), progress.getProgress());
 				// we can set this directly instead of making a new db request
 				goal.setCompletion(progress.getProgress());
 				setResult(Create.RESULT_MODIFIED);
@@ -204,19 +304,7 @@ public class Detail extends Activity implements OnClickListener
 		if (resultCode == Create.RESULT_MODIFIED)
 		{
 			// returned from another Details-Screen, in which the progress has
-			// been adjusted
-
-			// refresh relevant goal information
-			goal = goalProvider.getGoalWithId(goal.getId());
-			nameTextView.setBackgroundColor(getResources().getColor(
-					goal.getCompletionColor()));
-			displayProgress(goal.getCompletion());
-			HorizontalSlide progress = (HorizontalSlide) findViewById(R.detail.progress);
-			progress.setProgress(goal.getCompletion());
-
-			// update children
-			this.subgoalsLayout.removeAllViews();
-			this.drawChildren();
+			// been adjusted. The changes are shown by onGoalChanged().
 
 			// propagate changes up
 			this.setResult(Create.RESULT_MODIFIED);
@@ -231,14 +319,36 @@ public class Detail extends Activity implements OnClickListener
 		completionTextView.setText(String.format("%s: %d%%", getResources().getString(R.string.Progress), goal.getCompletion()));
 	}
 
+	/**
+	 * Loads the children of the current goal and draws them when they are
+	 * there.
+	 */
+	private void loadChildren()
+	{
+		final int request = ++childrenRequests;
+		asyncGoalProvider.getChildGoalSummaries(goal.getId(),
+				new GoalProviderCallback<ArrayList<GoalSummary>>()
+				{
+					public void action(ArrayList<GoalSummary> subgoals)
+					{
+						// a later load is on its way
+						if (request != childrenRequests)
+							return;
+						childImageBinder.cancelAll();
+						subgoalsLayout.removeAllViews();
+						drawChildren(subgoals);
+					}
+				});
+	}
+
 	/**
 	 * Draws Images for all children of the current goal.
 	 *
-	 * @param goal
+	 * @param subgoals
+	 *            The children in presented order
 	 */
-	private void drawChildren()
+	private void drawChildren(ArrayList<GoalSummary> subgoals)
 	{
-		final ArrayList<Goal> subgoals = goalProvider.getChildGoals(goal.getId());
 		TextView header = (TextView) findViewById(R.detail.subgoalsCaption);
 		header.setVisibility(subgoals.isEmpty() ? View.INVISIBLE : View.VISIBLE);
 
@@ -249,9 +359,8 @@ public class Detail extends Activity implements OnClickListener
 			int i = subgoals.size() / 5;
 			int j = subgoals.size() % 5;
 
-			Goal currentChild;
+			GoalSummary currentChild;
 			LinearLayout layout;
-			Bitmap bitmap;
 			int z = 0;
 
 			// Pass through all subgoals and draw 5 subgoals per row
@@ -267,13 +376,8 @@ public class Detail extends Activity implements OnClickListener
 					ib.setBackgroundColor(getResources().getColor(
 							currentChild.getCompletionColor()));
 
-					bitmap = (currentChild.getImageName().equals("")) ? BitmapFactory
-							.decodeResource(getResources(), R.drawable.nopic)
-							: ImageHandling.loadLocalBitmap(currentChild
-									.getImageName(), this);
-
-					ib.setImageBitmap(ImageHandling
-							.resizeBitmap(bitmap, 40, 40));
+					// the image is read in the background unless it is in memory
+					childImageBinder.bind(ib, currentChild.getImageName());
 					ib.setTag(currentChild.getId());
 					ib.setOnClickListener(this);
 					layout.addView(ib);
@@ -293,13 +397,8 @@ public class Detail extends Activity implements OnClickListener
 					ib.setBackgroundColor(getResources().getColor(
 							currentChild.getCompletionColor()));
 
-					bitmap = (currentChild.getImageName().equals("")) ? BitmapFactory
-							.decodeResource(getResources(), R.drawable.nopic)
-							: ImageHandling.loadLocalBitmap(currentChild
-									.getImageName(), this);
-
-					ib.setImageBitmap(ImageHandling
-							.resizeBitmap(bitmap, 40, 40));
+					// the image is read in the background unless it is in memory
+					childImageBinder.bind(ib, currentChild.getImageName());
 					ib.setTag(currentChild.getId());
 					ib.setOnClickListener(this);
 					layout.addView(ib);
@@ -312,7 +411,10 @@ public class Detail extends Activity implements OnClickListener
 	@Override
 	protected void onDestroy()
 	{
-		goalProvider.close();
+		goalProvider.removeChangeListener(this);
+		asyncGoalProvider.cancelAll();
+		childImageBinder.cancelAll();
+		goalProvider.release();
 		super.onDestroy();
 	}
 }
@@ -22,6 +22,7 @@
 package de.mango.gui;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Vector;
 
 import android.app.AlertDialog;
@@ -49,9 +50,14 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.AdapterView.AdapterContextMenuInfo;
 import de.mango.R;
+import de.mango.business.AsyncGoalProvider;
+import de.mango.business.AsyncImageBinder;
+import de.mango.business.BitmapCache;
 import de.mango.business.Goal;
+import de.mango.business.GoalChangeListener;
 import de.mango.business.GoalProvider;
-import de.mango.business.ImageHandling;
+import de.mango.business.GoalProviderCallback;
+import de.mango.business.GoalSummary;
 
 public class Hierarchy extends ListActivity implements OnClickListener
 {
@@ -63,6 +69,7 @@ public class Hierarchy extends ListActivity implements OnClickListener
 	// track if we must return RESULT_TOP_LEVEL_GOALS_CHANGED
 	private static final int REQUEST_CODE_CHANGE_TLG = 1;
 	private GoalProvider mGoalProvider;
+	private AsyncGoalProvider mAsyncGoalProvider;
 	private HierarchicalListAdapter mAdapter;
 
 	/*
@@ -90,7 +97,8 @@ public class Hierarchy extends ListActivity implements OnClickListener
 	public boolean onContextItemSelected(MenuItem item)
 	{
 		AdapterContextMenuInfo info = (AdapterContextMenuInfo) item.getMenuInfo();
-		final long goalId = (Long) ((Main.ViewHolder) (info.targetView.getTag())).textView.getTag();
+		final Main.ViewHolder clickedView = (Main.ViewHolder) info.targetView.getTag();
+		final long goalId = (Long) clickedView.textView.getTag();
 
 		switch (item.getItemId())
 		{
@@ -109,8 +117,7 @@ public class Hierarchy extends ListActivity implements OnClickListener
 			// show "Are you sure?" dialog
 			AlertDialog.Builder dialogBuilder = new AlertDialog.Builder(this);
 			dialogBuilder.setCancelable(true);
-			final Goal g = mGoalProvider.getGoalWithId(goalId);
-			dialogBuilder.setMessage(getString(R.string.Really_delete, g.getName()));
+			dialogBuilder.setMessage(getString(R.string.Really_delete, clickedView.textView.getText()));
 			AlertDialog dialog = dialogBuilder.create();
 			dialog.setButton(AlertDialog.BUTTON_POSITIVE, getString(R.string.Yes_delete_it),
 					new DialogInterface.OnClickListener()
@@ -120,15 +127,20 @@ public class Hierarchy extends ListActivity implements OnClickListener
 							if (which == AlertDialog.BUTTON_POSITIVE)
 							{
 								// delete the goal
-								boolean TLG = -1 == mGoalProvider.getParentId(goalId);
-								mGoalProvider.deleteGoal(goalId);
-								if (TLG)
-								{
-									setResult(RESULT_TOP_LEVEL_GOALS_CHANGED);
-									finish();
-								}
-								else
-									mAdapter.notifyDataSetChanged();
+								final boolean TLG = -1 == mGoalProvider.getParentId(goalId);
+								mAsyncGoalProvider.deleteGoal(goalId,
+										new GoalProviderCallback<Boolean>()
+										{
+											public void action(Boolean result)
+											{
+												// otherwise the adapter has been notified
+												if (TLG)
+												{
+													setResult(RESULT_TOP_LEVEL_GOALS_CHANGED);
+													finish();
+												}
+											}
+										});
 							}
 						}
 					});
@@ -137,12 +149,20 @@ public class Hierarchy extends ListActivity implements OnClickListener
 			dialog.show();
 			break;
 		case ExportToCalendarMenu:
-			Intent i3 = new Intent("android.intent.action.EDIT");
-			i3.setType("vnd.android.cursor.item/event");
-			final Goal g2 = mGoalProvider.getGoalWithId(goalId);
-			g2.putCalendarExtras(i3);
-			i3 = Intent.createChooser(i3, getString(R.string.Menu_choose_calendar_application));
-			startActivity(i3);
+			mAsyncGoalProvider.getGoalWithId(goalId, new GoalProviderCallback<Goal>()
+			{
+				public void action(Goal g)
+				{
+					// deleted in the meantime
+					if (g == null)
+						return;
+					Intent i3 = new Intent("android.intent.action.EDIT");
+					i3.setType("vnd.android.cursor.item/event");
+					g.putCalendarExtras(i3);
+					i3 = Intent.createChooser(i3, getString(R.string.Menu_choose_calendar_application));
+					startActivity(i3);
+				}
+			});
 			break;
 		}
 		return super.onContextItemSelected(item);
@@ -156,7 +176,8 @@ public class Hierarchy extends ListActivity implements OnClickListener
 	{
 		super.onCreate(savedInstanceState);
 		setContentView(de.mango.R.layout.hierarchy);
-		mGoalProvider = new GoalProvider(this);
+		mGoalProvider = GoalProvider.acquire(this);
+		mAsyncGoalProvider = new AsyncGoalProvider(mGoalProvider);
 		Intent intent = this.getIntent();
 
 		if (!intent.getExtras().containsKey("topLevelGoal")) {
@@ -241,12 +262,7 @@ public class Hierarchy extends ListActivity implements OnClickListener
 			break;
 		case Create.RESULT_MODIFIED:
 		case Create.RESULT_CREATED:
-			// TODO: we could do sth more intelligent here, preserving the
-			// current expand/collapse-state but still adapting the
-			// information
-			// this code would probably belong into
-			// HierarchicalListAdapter.notifyDataSetChanged
-			mAdapter.notifyDataSetChanged();
+			// the adapter is notified about the changes by the GoalProvider
 			//propagate changes to Main Activity
 			if (requestCode == REQUEST_CODE_CHANGE_TLG)
 				setResult(RESULT_TOP_LEVEL_GOALS_CHANGED);
@@ -261,29 +277,31 @@ public class Hierarchy extends ListActivity implements OnClickListener
 	 */
 	static class ListEntry
 	{
-		public ListEntry(Goal goal, int offset, boolean expanded)
+		public ListEntry(GoalSummary goal, int offset, boolean expanded)
 		{
 			this.goal = goal;
 			this.offset = offset;
 			this.expanded = expanded;
 		}
 
-		public Goal goal;
+		public GoalSummary goal;
 		public int offset;
 		public boolean expanded;
 	}
 
-	class HierarchicalListAdapter extends BaseAdapter implements OnClickListener
+	class HierarchicalListAdapter extends BaseAdapter implements OnClickListener,
+			GoalChangeListener
 	{
 		//pixels used as indent for each level
 		final static int INDENT = 20;
 		final Bitmap mPlusBitmap;
 		final Bitmap mMinusBitmap;
 		final BitmapDrawable mNoPicBitmap;
+		final AsyncImageBinder<TextView> mImageBinder;
 		final LayoutInflater mInflater;
 
 		final Hierarchy mHierarchy;
-		Goal mTopLevelGoal;
+		GoalSummary mTopLevelGoal;
 		final GoalProvider mGoalProvider;
 		/**
 		 * Currently show goals in order (direct connection to the list view)
@@ -298,27 +316,81 @@ public class Hierarchy extends ListActivity implements OnClickListener
 			mNoPicBitmap = new BitmapDrawable(BitmapFactory.decodeResource(getResources(),
 					R.drawable.nopic));
 			mNoPicBitmap.setBounds(0, 0, 50, 50);
+			mImageBinder = new AsyncImageBinder<TextView>(hierarchy, BitmapCache.SIZE_HIERARCHY)
+			{
+				@Override
+				protected void setImage(TextView view, Bitmap image)
+				{
+					BitmapDrawable d = mNoPicBitmap;
+					if (image != null)
+					{
+						d = new BitmapDrawable(image);
+						d.setBounds(0, 0, 50, 50);
+					}
+					view.setCompoundDrawables(d, null, null, null);
+				}
+			};
 
 			mHierarchy = hierarchy;
-			mTopLevelGoal = gp.getGoalWithId(topLevelGoalId);
+			mTopLevelGoal = gp.getGoalSummary(topLevelGoalId);
 			mGoalProvider = gp;
 			mCurrentlyShownGoals = new Vector<ListEntry>();
-			populate();
+			populate(new HashSet<Long>());
+			gp.addChangeListener(this);
 		}
 
 		/**
 		 * Fill the list view with the children of current mTopLevelGoal.
+		 *
+		 * @param expandedIds
+		 *            Ids of the goals to show expanded
 		 */
-		private void populate()
+		private void populate(HashSet<Long> expandedIds)
 		{
-			ArrayList<Goal> c = mGoalProvider.getChildGoals(mTopLevelGoal.getId());
+			ArrayList<GoalSummary> c = mGoalProvider.getChildGoalSummaries(mTopLevelGoal.getId());
 			boolean hasChildren = c != null && !c.isEmpty();
 			mCurrentlyShownGoals.add(new ListEntry(mTopLevelGoal, 0, hasChildren));
 			if (hasChildren)
-				for (Goal g : c)
-				{
-					mCurrentlyShownGoals.add(new ListEntry(g, INDENT, false));
-				}
+				addEntries(c, INDENT, expandedIds);
+		}
+
+		private void addEntries(ArrayList<GoalSummary> goals, int offset, HashSet<Long> expandedIds)
+		{
+			for (GoalSummary g : goals)
+			{
+				ArrayList<GoalSummary> children = expandedIds.contains(g.getId()) ? mGoalProvider
+						.getChildGoalSummaries(g.getId()) : null;
+				boolean expanded = children != null && !children.isEmpty();
+				mCurrentlyShownGoals.add(new ListEntry(g, offset, expanded));
+				if (expanded)
+					addEntries(children, offset + INDENT, expandedIds);
+			}
+		}
+
+		/**
+		 * @return The position of the goal in the list or -1 if it is not
+		 *         shown.
+		 */
+		private int indexOf(long goalId)
+		{
+			for (int i = 0; i < mCurrentlyShownGoals.size(); i++)
+				if (mCurrentlyShownGoals.get(i).goal.getId() == goalId)
+					return i;
+			return -1;
+		}
+
+		/**
+		 * @return The position after the last shown descendant of the entry at
+		 *         the given position.
+		 */
+		private int endOfSubtree(int position)
+		{
+			int offset = mCurrentlyShownGoals.get(position).offset;
+			int end = position + 1;
+			while (end < mCurrentlyShownGoals.size()
+					&& mCurrentlyShownGoals.get(end).offset > offset)
+				end++;
+			return end;
 		}
 
 		/* (non-Javadoc)
@@ -379,10 +451,10 @@ public class Hierarchy extends ListActivity implements OnClickListener
 			}
 			// load goal information
 			ListEntry entry = mCurrentlyShownGoals.get(position);
-			Goal goal = entry.goal;
+			GoalSummary goal = entry.goal;
 			// expand/collapse stuff
 			convertView.setPadding(entry.offset, 0, 0, 0);
-			if (mGoalProvider.hasChildren(entry.goal.getId()))
+			if (goal.getChildCount() > 0)
 			{
 				viewHolder.expandButton.setVisibility(View.VISIBLE);
 				viewHolder.expandButton.setImageBitmap(entry.expanded ? mMinusBitmap : mPlusBitmap);
@@ -401,29 +473,119 @@ public class Hierarchy extends ListActivity implements OnClickListener
 			viewHolder.textView.setText(goal.getName());
 			viewHolder.textView.setTag(goal.getId());
 
-			BitmapDrawable d;
-			if (goal.getImageName().equals("") || goal.getImageName().equals(null))
-				d = mNoPicBitmap;
-			else
-			{
-				d = new BitmapDrawable(ImageHandling.loadLocalBitmap(goal.getImageName(),
-						mHierarchy));
-				d.setBounds(0, 0, 50, 50);
-			}
-			viewHolder.textView.setCompoundDrawables(d, null, null, null);
+			// the image is read in the background unless it is in memory
+			mImageBinder.bind(viewHolder.textView, goal.getImageName());
 			return convertView;
 		}
 
+		/**
+		 * Reloads all shown goals, keeping expanded goals expanded.
+		 */
 		@Override
 		public void notifyDataSetChanged()
 		{
-			// initialize shown goals
-			mTopLevelGoal = mGoalProvider.getGoalWithId(mTopLevelGoal.getId());
+			HashSet<Long> expandedIds = new HashSet<Long>();
+			for (ListEntry entry : mCurrentlyShownGoals)
+				if (entry.expanded)
+					expandedIds.add(entry.goal.getId());
+			GoalSummary topLevelGoal = mGoalProvider.getGoalSummary(mTopLevelGoal.getId());
+			if (topLevelGoal == null)
+			{
+				// the whole tree is gone
+				mHierarchy.finish();
+				return;
+			}
+			mTopLevelGoal = topLevelGoal;
 			mCurrentlyShownGoals.clear();
-			this.populate();
+			this.populate(expandedIds);
 			super.notifyDataSetChanged();
 		}
 
+		/**
+		 * Applies the change of a single goal to the shown entries.
+		 */
+		public void onGoalChanged(int type, long goalId, long parentId)
+		{
+			Vector<ListEntry> currentlyShownGoals = mCurrentlyShownGoals;
+			switch (type)
+			{
+			case RELOAD:
+				notifyDataSetChanged();
+				return;
+			case INSERTED:
+			{
+				int parentPosition = indexOf(parentId);
+				if (parentPosition == -1)
+					return;
+				ListEntry parent = currentlyShownGoals.get(parentPosition);
+				refreshGoal(parent);
+				// children of the top level goal are always shown
+				if (parent.expanded || parentPosition == 0)
+				{
+					GoalSummary g = mGoalProvider.getGoalSummary(goalId);
+					if (g == null)
+						return;
+					parent.expanded = true;
+					currentlyShownGoals.add(endOfSubtree(parentPosition), new ListEntry(g,
+							parent.offset + INDENT, false));
+				}
+				// otherwise only the expand button of the parent may change
+				break;
+			}
+			case UPDATED:
+			case COMPLETION_CHANGED:
+			{
+				int position = indexOf(goalId);
+				GoalSummary g = mGoalProvider.getGoalSummary(goalId);
+				if (position == -1 || g == null)
+					return;
+				currentlyShownGoals.get(position).goal = g;
+				if (position == 0)
+					mTopLevelGoal = g;
+				break;
+			}
+			case DELETED:
+			{
+				int position = indexOf(goalId);
+				if (position != -1)
+					currentlyShownGoals.subList(position, endOfSubtree(position)).clear();
+				int parentPosition = indexOf(parentId);
+				if (parentPosition != -1)
+				{
+					ListEntry parent = currentlyShownGoals.get(parentPosition);
+					refreshGoal(parent);
+					if (parent.goal.getChildCount() == 0)
+						parent.expanded = false;
+				}
+				break;
+			}
+			}
+			super.notifyDataSetChanged();
+		}
+
+		/**
+		 * Reloads the goal of an entry, e.g. to get its current number of
+		 * children.
+		 */
+		private void refreshGoal(ListEntry entry)
+		{
+			GoalSummary g = mGoalProvider.getGoalSummary(entry.goal.getId());
+			if (g == null)
+				return;
+			entry.goal = g;
+			if (entry == mCurrentlyShownGoals.get(0))
+				mTopLevelGoal = g;
+		}
+
+		/**
+		 * Stops listening for changes.
+		 */
+		public void close()
+		{
+			mGoalProvider.removeChangeListener(this);
+			mImageBinder.cancelAll();
+		}
+
 		public void onClick(View v)
 		{
 			// expand or collapse was clicked
@@ -438,20 +600,28 @@ public class Hierarchy extends ListActivity implements OnClickListener
 		 * Expands the given list entry
 		 * @param entry List entry to be expanded
 		 */
-		private void expandEntry(ListEntry entry)
+		private void expandEntry(final ListEntry entry)
 		{
-			Vector<ListEntry> currentlyShownGoals = mCurrentlyShownGoals;
-			ArrayList<Goal> children = mGoalProvider.getChildGoals(entry.goal.getId());
-			if (children.isEmpty())
-				return;
-			entry.expanded = true;
-			int newoffset = entry.offset + INDENT;
-			int newlocation = currentlyShownGoals.indexOf(entry);
-			for (Goal g : children)
-			{
-				currentlyShownGoals.add(++newlocation, new ListEntry(g, newoffset, false));
-			}
-			super.notifyDataSetChanged();
+			mAsyncGoalProvider.getChildGoalSummaries(entry.goal.getId(),
+					new GoalProviderCallback<ArrayList<GoalSummary>>()
+					{
+						public void action(ArrayList<GoalSummary> children)
+						{
+							Vector<ListEntry> currentlyShownGoals = mCurrentlyShownGoals;
+							int newlocation = currentlyShownGoals.indexOf(entry);
+							// the list may have changed while loading
+							if (children.isEmpty() || entry.expanded || newlocation == -1)
+								return;
+							entry.expanded = true;
+							int newoffset = entry.offset + INDENT;
+							for (GoalSummary g : children)
+							{
+								currentlyShownGoals.add(++newlocation, new ListEntry(g, newoffset,
+										false));
+							}
+							HierarchicalListAdapter.super.notifyDataSetChanged();
+						}
+					});
 		}
 
 		/**
@@ -476,7 +646,10 @@ public class Hierarchy extends ListActivity implements OnClickListener
 	@Override
 	protected void onDestroy()
 	{
-		mGoalProvider.close();
+		mAsyncGoalProvider.cancelAll();
+		if (mAdapter != null)
+			mAdapter.close();
+		mGoalProvider.release();
 		super.onDestroy();
 	}
 }
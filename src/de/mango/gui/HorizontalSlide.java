@@ -112,4 +112,13 @@ public class HorizontalSlide extends ProgressBar
 	{
 		this.modifiable = modifiable;
 	}
+
+	/**
+	 * @return True if the user can control the progress of the
+	 *         HorizontalSlide.
+	 */
+	public boolean isModifiable()
+	{
+		return modifiable;
+	}
 }
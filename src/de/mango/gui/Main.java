@@ -21,7 +21,6 @@
 
 package de.mango.gui;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import android.app.Activity;
@@ -58,10 +57,16 @@ import android.widget.TextView;
 import android.widget.Toast;
 import android.widget.AdapterView.AdapterContextMenuInfo;
 import de.mango.R;
+import de.mango.business.AsyncGoalProvider;
+import de.mango.business.AsyncImageBinder;
+import de.mango.business.BitmapCache;
 import de.mango.business.Goal;
+import de.mango.business.GoalChangeListener;
 import de.mango.business.GoalProvider;
-import de.mango.business.ImExport;
-import de.mango.business.ImageHandling;
+import de.mango.business.GoalProviderCallback;
+import de.mango.business.GoalProviderErrorCallback;
+import de.mango.business.GoalSummary;
+import de.mango.business.TopLevelGoalPager;
 
 public class Main extends Activity implements OnClickListener,
 		OnCreateContextMenuListener
@@ -90,7 +95,9 @@ public class Main extends Activity implements OnClickListener,
 	private static final int REQUEST_CODE_PICK_XML_IMPORT_FILE = 3;
 	private static final String GOALS_IMPORTED_KEY="goalsImportedOrChecked";
 	private static final String GOALS_XML_FILE="goals.mango";
+	private static final String THUMBNAILS_CREATED_KEY="thumbnailsCreated";
 	private GoalProvider goalProvider;
+	private AsyncGoalProvider mAsyncGoalProvider;
 	private ImageAdapter mAdapter;
 	private AlertDialog.Builder mAlertDialogBuilder;
 	/**
@@ -159,10 +166,7 @@ public class Main extends Activity implements OnClickListener,
 				startActivityForResult(i, REQUEST_CODE_PICK_XML_EXPORT_FILE);
 			}
 			else
-			{
-				if (ImExport.exportToXml(goalProvider, "/sdcard/goals.mango", this))
-					Toast.makeText(this, getResources().getString(R.string.Main_goals_exported_to)+"/sdcard/goals.mango", Toast.LENGTH_LONG).show();
-			}
+				exportGoals(false, "/sdcard/goals.mango", R.string.Main_goals_exported_to);
 			break;
 		case ExportToICSMenu:
 			if (mPickFileAvailable)
@@ -173,30 +177,13 @@ public class Main extends Activity implements OnClickListener,
 				startActivityForResult(i, REQUEST_CODE_PICK_ICS_FILE);
 			}
 			else
-			{
-				if (ImExport.exportToIcs(goalProvider, this, "/sdcard/goals.ics"))
-					Toast.makeText(this, getResources().getString(R.string.Main_goals_exported_to) +"/sdcard/goals.ics", Toast.LENGTH_LONG).show();
-			}
+				exportGoals(true, "/sdcard/goals.ics", R.string.Main_goals_exported_to);
 			break;
 		case SendXMLMenu:
-			// make sure the file is recent
-			ImExport.exportToXml(goalProvider, "/sdcard/goals.mango", this);
-			i = new Intent(Intent.ACTION_SEND);
-			i.setType("text/xml");
-			i.putExtra(Intent.EXTRA_STREAM, Uri
-					.parse("file:///sdcard/goals.mango"));
-			i = Intent.createChooser(i, getString(R.string.How_to_send_the_goals));
-			startActivity(i);
+			sendGoals(false, "/sdcard/goals.mango", "text/xml");
 			break;
 		case SendICSMenu:
-			// make sure the file is recent
-			ImExport.exportToIcs(goalProvider, this, "/sdcard/goals.ics");
-			i = new Intent(Intent.ACTION_SEND);
-			i.setType("text/calendar");
-			i.putExtra(Intent.EXTRA_STREAM, Uri
-					.parse("file:///sdcard/goals.ics"));
-			i= Intent.createChooser(i, getString(R.string.How_to_send_the_goals));
-			startActivity(i);
+			sendGoals(true, "/sdcard/goals.ics", "text/calendar");
 			break;
 		case ImportFromXMLMenu:
 			if (mPickFileAvailable)
@@ -208,18 +195,7 @@ public class Main extends Activity implements OnClickListener,
 				startActivityForResult(i, REQUEST_CODE_PICK_XML_IMPORT_FILE);
 			}
 			else
-			{
-				if (ImExport.importFromXml(goalProvider, "/sdcard/goals.mango", this))
-				{
-					if (mEmptyScreen)
-						inflateGridView();
-					else
-						mAdapter.notifyDataSetChanged();
-					Toast.makeText(this, R.string.Main_import_successful, Toast.LENGTH_SHORT).show();
-				}
-				else
-					Toast.makeText(this, getString(R.string.Main_import_failed,"/sdcard/goals.mango"), Toast.LENGTH_LONG).show();
-			}
+				importGoals("/sdcard/goals.mango");
 			break;
 		case AboutWindow:
 			AlertDialog dialog = mAlertDialogBuilder.create();
@@ -259,25 +235,27 @@ public class Main extends Activity implements OnClickListener,
 		AdapterContextMenuInfo info = (AdapterContextMenuInfo) item
 				.getMenuInfo();
 		final ViewHolder clickedView = (ViewHolder) info.targetView.getTag();
+		// an empty cell, see ImageAdapter.getView()
+		if (clickedView.textView.getTag() == null)
+			return true;
 		final long goalId = (Long) clickedView.textView.getTag();
-		final Goal g = goalProvider.getGoalWithId(goalId);
 		switch (item.getItemId())
 		{
 			case CreateSubGoalMenu:
 				Intent i = new Intent(this, Create.class);
-				i.putExtra("parentId", g.getId());
+				i.putExtra("parentId", goalId);
 				startActivityForResult(i, 0);
 				break;
 			case ModifyGoalMenu:
 				Intent i2 = new Intent(this, Create.class);
 				i2.putExtra("modify", true);
-				i2.putExtra("goalId", g.getId());
+				i2.putExtra("goalId", goalId);
 				startActivityForResult(i2, 0);
 				break;
 			case DeleteGoalMenu:
 				mAlertDialogBuilder.setCancelable(true);
 				mAlertDialogBuilder
-						.setMessage(getString(R.string.Really_delete, g.getName()));
+						.setMessage(getString(R.string.Really_delete, clickedView.textView.getText()));
 				AlertDialog dialog = mAlertDialogBuilder.create();
 				dialog.setButton(AlertDialog.BUTTON_POSITIVE,
 						getString(R.string.Yes_delete_it),
@@ -288,8 +266,8 @@ public class Main extends Activity implements OnClickListener,
 							{
 								if (which == AlertDialog.BUTTON_POSITIVE)
 								{
-									goalProvider.deleteGoal(goalId);
-									mAdapter.notifyDataSetChanged();
+									// the adapter is notified about the change
+									mAsyncGoalProvider.deleteGoal(goalId, null);
 								}
 							}
 						});
@@ -303,11 +281,20 @@ public class Main extends Activity implements OnClickListener,
 				startActivity(i3);
 				break;
 			case ExportToCalendarMenu:
-				Intent i4 = new Intent("android.intent.action.EDIT");
-				i4.setType("vnd.android.cursor.item/event");
-				g.putCalendarExtras(i4);
-				i4 = Intent.createChooser(i4, getString(R.string.Menu_choose_calendar_application));
-				startActivity(i4);
+				mAsyncGoalProvider.getGoalWithId(goalId, new GoalProviderCallback<Goal>()
+				{
+					public void action(Goal g)
+					{
+						// deleted in the meantime
+						if (g == null)
+							return;
+						Intent i4 = new Intent("android.intent.action.EDIT");
+						i4.setType("vnd.android.cursor.item/event");
+						g.putCalendarExtras(i4);
+						i4 = Intent.createChooser(i4, getString(R.string.Menu_choose_calendar_application));
+						startActivity(i4);
+					}
+				});
 				break;
 		}
 		return super.onContextItemSelected(item);
@@ -318,28 +305,140 @@ public class Main extends Activity implements OnClickListener,
 	{
 		super.onCreate(savedInstanceState);
 		mAlertDialogBuilder = new AlertDialog.Builder(this);
-		goalProvider = new GoalProvider(this);
+		goalProvider = GoalProvider.acquire(this);
+		mAsyncGoalProvider = new AsyncGoalProvider(goalProvider);
+		// goals of old versions are moved over before anything is read, this
+		// also opens and upgrades the database on the writer thread
+		mAsyncGoalProvider.migrate(null);
 
 		// upgrade from xml data backed
-		SharedPreferences prefs = getPreferences(MODE_PRIVATE);
+		final SharedPreferences prefs = getPreferences(MODE_PRIVATE);
 		boolean alreadyImported = prefs.getBoolean(GOALS_IMPORTED_KEY, false);
 		if (!alreadyImported) {
 			Toast.makeText(this, R.string.Main_import_old, Toast.LENGTH_LONG).show();
-			if (ImExport.importFromXml(goalProvider, GOALS_XML_FILE, this)) {
-				getFileStreamPath(GOALS_XML_FILE).delete();
-			}
+			// not cancelled in onDestroy(), the old file must only be
+			// imported once, so only the application context is used here
+			final Context appContext = getApplicationContext();
+			new AsyncGoalProvider(goalProvider).importFromXml(GOALS_XML_FILE, this, new GoalProviderCallback<Boolean>()
+			{
+				public void action(Boolean success)
+				{
+					if (success)
+						appContext.getFileStreamPath(GOALS_XML_FILE).delete();
 
-			SharedPreferences.Editor editor = prefs.edit();
-			editor.putBoolean(GOALS_IMPORTED_KEY, true);
-			editor.commit();
+					SharedPreferences.Editor editor = prefs.edit();
+					editor.putBoolean(GOALS_IMPORTED_KEY, true);
+					editor.commit();
+				}
+			});
 		}
 
-		if (mEmptyScreen = (goalProvider.getNumTopLevelGoals()==0))
-		{
-			setContentView(R.layout.emptymain);
+		// images saved by older versions have no thumbnails yet
+		if (!prefs.getBoolean(THUMBNAILS_CREATED_KEY, false)) {
+			BitmapCache.getInstance(this).createMissingThumbnails(new GoalProviderCallback<Integer>()
+			{
+				public void action(Integer count)
+				{
+					SharedPreferences.Editor editor = prefs.edit();
+					editor.putBoolean(THUMBNAILS_CREATED_KEY, true);
+					editor.commit();
+				}
+			});
 		}
+
+		// the import above is done first, as reads wait for pending writes
+		mAsyncGoalProvider.getNumTopLevelGoals(new GoalProviderCallback<Integer>()
+		{
+			public void action(Integer numTopLevelGoals)
+			{
+				if (mEmptyScreen = (numTopLevelGoals == 0))
+					setContentView(R.layout.emptymain);
+				else
+					inflateGridView();
+			}
+		});
+	}
+
+	/**
+	 * Imports goals from an XML file in the background and shows them
+	 * afterwards.
+	 *
+	 * @param filename
+	 *            Name of the XML file to read from
+	 */
+	/**
+	 * Exports all goals in the background and shows a message when done.
+	 *
+	 * @param ics
+	 *            true to export to iCalendar, false to export to XML
+	 * @param messageId
+	 *            Message shown in front of the file name on success
+	 */
+	private void exportGoals(boolean ics, final String filename, final int messageId)
+	{
+		GoalProviderCallback<Boolean> callback = new GoalProviderCallback<Boolean>()
+		{
+			public void action(Boolean success)
+			{
+				if (success)
+					Toast.makeText(Main.this, getString(messageId) + filename, Toast.LENGTH_LONG).show();
+			}
+		};
+		if (ics)
+			mAsyncGoalProvider.exportToIcs(filename, this, callback);
+		else
+			mAsyncGoalProvider.exportToXml(filename, this, callback);
+	}
+
+	/**
+	 * Exports all goals in the background and lets the user choose how to
+	 * send the file once it is written.
+	 *
+	 * @param ics
+	 *            true to export to iCalendar, false to export to XML
+	 */
+	private void sendGoals(boolean ics, final String filename, final String mimeType)
+	{
+		GoalProviderCallback<Boolean> callback = new GoalProviderCallback<Boolean>()
+		{
+			public void action(Boolean success)
+			{
+				// an older file is still better than nothing
+				Intent i = new Intent(Intent.ACTION_SEND);
+				i.setType(mimeType);
+				i.putExtra(Intent.EXTRA_STREAM, Uri.parse("file://" + filename));
+				i = Intent.createChooser(i, getString(R.string.How_to_send_the_goals));
+				startActivity(i);
+			}
+		};
+		// make sure the file is recent
+		if (ics)
+			mAsyncGoalProvider.exportToIcs(filename, this, callback);
 		else
-			inflateGridView();
+			mAsyncGoalProvider.exportToXml(filename, this, callback);
+	}
+
+	private void importGoals(final String filename)
+	{
+		mAsyncGoalProvider.importFromXml(filename, this, new GoalProviderErrorCallback<Boolean>()
+		{
+			public void action(Boolean success)
+			{
+				if (success)
+				{
+					if (mEmptyScreen)
+						inflateGridView();
+					Toast.makeText(Main.this, R.string.Main_import_successful, Toast.LENGTH_SHORT).show();
+				}
+				else
+					error(null);
+			}
+
+			public void error(Throwable cause)
+			{
+				Toast.makeText(Main.this, getString(R.string.Main_import_failed, filename), Toast.LENGTH_LONG).show();
+			}
+		});
 	}
 	/**
 	 * Replace the current Layout with standard Main Grid Layout.
@@ -348,6 +447,8 @@ public class Main extends Activity implements OnClickListener,
 	{
 		setContentView(de.mango.R.layout.main);
 		GridView gridview = (GridView) findViewById(R.main.goalGridview);
+		if (mAdapter != null)
+			mAdapter.close();
 		mAdapter = new ImageAdapter(this, goalProvider);
 		gridview.setAdapter(mAdapter);
 		registerForContextMenu(gridview);
@@ -373,6 +474,9 @@ public class Main extends Activity implements OnClickListener,
 
 	public void onClick(View v)
 	{
+		// an empty cell, see ImageAdapter.getView()
+		if (v.getTag() == null)
+			return;
 		if (DEBUG)
 			Log.d(TAG, "Tag of the clicked view: " + ((Integer) v.getTag()).toString());
 		Intent i = new Intent(this, Hierarchy.class);
@@ -389,30 +493,21 @@ public class Main extends Activity implements OnClickListener,
 				if (resultCode == RESULT_OK)
 				{
 					String uri = data.getData().getEncodedPath();
-					if (ImExport.exportToXml(goalProvider, uri, this))
-						Toast.makeText(this, R.string.Main_goals_saved_to+uri, Toast.LENGTH_LONG).show();
+					exportGoals(false, uri, R.string.Main_goals_saved_to);
 				}
 				break;
 			case REQUEST_CODE_PICK_ICS_FILE:
 				if (resultCode == RESULT_OK)
 				{
 					String uri = data.getData().getEncodedPath();
-					if (ImExport.exportToIcs(goalProvider, this, uri))
-						Toast.makeText(this, R.string.Main_goals_exported_to+uri, Toast.LENGTH_LONG).show();
+					exportGoals(true, uri, R.string.Main_goals_exported_to);
 				}
 				break;
 			case REQUEST_CODE_PICK_XML_IMPORT_FILE:
 				if (resultCode == RESULT_OK)
 				{
 					Uri uri = data.getData();
-					if (ImExport.importFromXml(goalProvider, uri.getEncodedPath(), this))
-					{
-						if (mEmptyScreen)
-							inflateGridView();
-						else
-							mAdapter.notifyDataSetChanged();
-						Toast.makeText(this, R.string.Main_import_successful, Toast.LENGTH_SHORT).show();
-					}
+					importGoals(uri.getEncodedPath());
 				}
 				break;
 			default:
@@ -421,14 +516,9 @@ public class Main extends Activity implements OnClickListener,
 					case RESULT_CANCELED:
 						break;
 					case Create.RESULT_CREATED:
+						// otherwise the adapter has been notified already
 						if (mEmptyScreen)
 							inflateGridView();
-						else
-							mAdapter.notifyDataSetChanged();
-						break;
-					case Create.RESULT_MODIFIED:
-					case Hierarchy.RESULT_TOP_LEVEL_GOALS_CHANGED:
-						mAdapter.notifyDataSetChanged();
 						break;
 				}
 		}
@@ -447,14 +537,16 @@ public class Main extends Activity implements OnClickListener,
 		ImageButton expandButton;
 	}
 
-	public class ImageAdapter extends BaseAdapter
+	public class ImageAdapter extends BaseAdapter implements GoalChangeListener,
+			TopLevelGoalPager.Listener
 	{
 		private final Main mMainDialog;
 		private final GoalProvider mGoalProvider;
 		// inflater for rolling out the layout
 		private final LayoutInflater mInflater;
 		private final Bitmap mNoPic;
-		private ArrayList<Goal> mTLGs;
+		private final AsyncImageBinder<ImageButton> mImageBinder;
+		private final TopLevelGoalPager mTLGs;
 
 		public ImageAdapter(Main mainActivity, GoalProvider gp)
 		{
@@ -462,12 +554,21 @@ public class Main extends Activity implements OnClickListener,
 			mGoalProvider = gp;
 			mInflater = getLayoutInflater();
 			mNoPic = BitmapFactory.decodeResource(getResources(), R.drawable.nopic);
-			mTLGs = gp.getTopLevelGoals();
+			mImageBinder = new AsyncImageBinder<ImageButton>(mainActivity, BitmapCache.SIZE_MAIN)
+			{
+				@Override
+				protected void setImage(ImageButton view, Bitmap image)
+				{
+					view.setImageBitmap(image != null ? image : mNoPic);
+				}
+			};
+			mTLGs = new TopLevelGoalPager(gp, TopLevelGoalPager.DEFAULT_PAGE_SIZE, this);
+			gp.addChangeListener(this);
 		}
 
 		public int getCount()
 		{
-			return mTLGs.size();
+			return mTLGs.getCount();
 		}
 
 		public Object getItem(int position)
@@ -509,29 +610,91 @@ public class Main extends Activity implements OnClickListener,
 			{
 				viewHolder = (ViewHolder) convertView.getTag();
 			}
-			// load goal information
-			Goal goal = mTLGs.get(position);
+			// load goal information, the page is read in the background if it
+			// is not loaded yet
+			GoalSummary goal = mTLGs.get(position);
+			if (goal == null)
+			{
+				// show a placeholder until the page has arrived, without
+				// anything of the goal the recycled cell has shown before
+				viewHolder.textView.setTag(null);
+				viewHolder.expandButton.setTag(null);
+				viewHolder.textView.setText("");
+				mImageBinder.bind(viewHolder.expandButton, "");
+				return convertView;
+			}
 			viewHolder.textView.setTag(goal.getId());
 			viewHolder.expandButton.setTag(goal.getId());
 
 			viewHolder.textView.setText(goal.getName());
-			Bitmap bitmap = ((goal.getImageName().equals(""))) ? mNoPic : ImageHandling.loadLocalBitmap(goal.getImageName(), getBaseContext());
-			viewHolder.expandButton.setImageBitmap(bitmap);
+			// the image is read in the background unless it is in memory
+			mImageBinder.bind(viewHolder.expandButton, goal.getImageName());
 			return convertView;
 		}
 
 		@Override
 		public void notifyDataSetChanged()
 		{
+			mTLGs.reset();
+			super.notifyDataSetChanged();
+		}
+
+		/**
+		 * Shows the count or the page which has just arrived.
+		 */
+		public void onPagerChanged()
+		{
+			super.notifyDataSetChanged();
+		}
+
+		/**
+		 * Applies a change of a single top level goal, everything else is not
+		 * shown.
+		 */
+		public void onGoalChanged(int type, long goalId, long parentId)
+		{
+			if (type == RELOAD)
+			{
+				notifyDataSetChanged();
+				return;
+			}
+			if (parentId != -1)
+				return;
+			switch (type)
+			{
+				case INSERTED:
+					mTLGs.inserted();
+					break;
+				case UPDATED:
+				case COMPLETION_CHANGED:
+					mTLGs.updated(goalId);
+					break;
+				case DELETED:
+					mTLGs.deleted(goalId);
+					break;
+			}
 			super.notifyDataSetChanged();
-			mTLGs = mGoalProvider.getTopLevelGoals();
+		}
+
+		/**
+		 * Stops listening for changes and reading goals and images.
+		 */
+		public void close()
+		{
+			mGoalProvider.removeChangeListener(this);
+			mImageBinder.cancelAll();
+			mTLGs.cancelAll();
 		}
 	}
 
 	@Override
 	protected void onDestroy()
 	{
-		goalProvider.close();
+		// no callback may inflate views on this Activity anymore
+		mAsyncGoalProvider.cancelAll();
+		if (mAdapter != null)
+			mAdapter.close();
+		goalProvider.release();
 		super.onDestroy();
 	}
 
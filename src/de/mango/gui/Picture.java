@@ -213,7 +213,8 @@ public class Picture extends Activity implements OnClickListener,
 			if (photoUri != null) {
 				try
 				{
-					Bitmap bitmap = ImageHandling.loadBitmapFromContentUri(getContentResolver(), photoUri);
+					Bitmap bitmap = ImageHandling.loadBitmapFromContentUri(getContentResolver(),
+							photoUri, ImageHandling.GOAL_IMAGE_SIZE, ImageHandling.GOAL_IMAGE_SIZE);
 					if (DEBUG)
 					{
 						Log.d(TAG, "Loading image: " + photoUri.toString());
@@ -0,0 +1,65 @@
+/*
+ *  Copyright (C) 2011 Sebastian Dörner
+ *
+ *  This file is part of Mango.
+ *
+ *  Mango is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Mango is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Mango.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package de.mango.business;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+public class GoalTreeCacheTest extends TestCase
+{
+	private static GoalTreeCache cache(GoalSummary... summaries)
+	{
+		ArrayList<GoalSummary> list = new ArrayList<GoalSummary>();
+		for (GoalSummary s : summaries)
+			list.add(s);
+		return new GoalTreeCache(list, new int[list.size()], new int[list.size()]);
+	}
+
+	public void testInsertAddsChild()
+	{
+		GoalTreeCache cache = cache(new GoalSummary(1, -1, "parent", "", 0, 1, 0));
+		cache.insert(2, new Goal("child"), 1);
+		assertEquals(1, cache.getChildGoals(1).size());
+		assertEquals(1, cache.getGoal(1).getChildCount());
+		assertEquals(1, cache.getParentId(2));
+	}
+
+	/**
+	 * A cold cache loaded inside the insert's transaction already contains
+	 * the new goal.
+	 */
+	public void testInsertIntoColdCacheAddsChildOnce()
+	{
+		GoalTreeCache cache = cache(new GoalSummary(1, -1, "parent", "", 0, 1, 1),
+				new GoalSummary(2, 1, "child", "", 0, 1, 0));
+		cache.insert(2, new Goal("child"), 1);
+		assertEquals(1, cache.getChildGoals(1).size());
+		assertEquals(1, cache.getGoal(1).getChildCount());
+	}
+
+	public void testInsertIntoColdCacheAddsTopLevelGoalOnce()
+	{
+		GoalTreeCache cache = cache(new GoalSummary(1, -1, "goal", "", 0, 1, 0));
+		cache.insert(1, new Goal("goal"), -1);
+		assertEquals(1, cache.getTopLevelGoals().size());
+	}
+}